@@ -0,0 +1,53 @@
+(ns crustimoney.bench
+  "Benchmarks comparing the throughput of the interpreter and the compiled
+  grammars. Run with `lein bench`."
+  (:use crustimoney.parse))
+
+
+;;; Grammars and inputs.
+
+(def calc
+  {:expr          [ :sum ]
+   :sum           [ :product :sum-op :sum / :product ]
+   :product       [ :value :product-op :product / :value ]
+   :value         [ :number / \( :expr \) ]
+   :sum-op        #"(\+|-)"
+   :product-op    #"(\*|/)"
+   :number        #"[0-9]+"})
+
+(def nested
+  {:root          [ :parens ]
+   :parens-       [ :non-paren :parens / :paren-open :parens :paren-close :parens / ]
+   :non-paren     #"[^\(\)]"
+   :paren-open    \(
+   :paren-close   \)})
+
+(def benchmarks
+  [["calc" calc :expr (apply str "1" (repeat 300 "+(2*3-4)/5"))]
+   ["nested" nested :root (apply str (repeat 40 "((foo)bar(baz))woz"))]])
+
+
+;;; Measuring.
+
+(defn- measure
+  "Returns the average time in milliseconds of calling `f`, after warming up."
+  [f]
+  (dotimes [_ 300] (f))
+  (let [start (System/nanoTime)]
+    (dotimes [_ 300] (f))
+    (/ (- (System/nanoTime) start) 1e6 300)))
+
+(defn -main
+  [& args]
+  (doseq [[label rules start text] benchmarks]
+    (let [engines [["interpreter" rules]
+                   ["vm" rules {:engine :vm}]
+                   ["nodes" (compile-grammar rules)]
+                   ["bytecode" (compile-grammar rules {:backend :bytecode})]]
+          baseline (measure #(parse rules start text))]
+      (doseq [[engine grammar options] engines]
+        (let [time (if (= engine "interpreter")
+                     baseline
+                     (measure #(parse grammar start text (or options {}))))]
+          (println (format "%-8s %-12s %8.3f ms/parse %6.1fx"
+                           label engine time (/ baseline time))))))))
@@ -6,4 +6,6 @@
   :dependencies [[org.clojure/clojure "1.4.0"]]
   :repl-options {:init-ns crustimoney.parse}
   :profiles {:dev {:dependencies [[midje "1.5-beta1"]]
-                   :plugins [[lein-midje "3.0-beta1"]]}})
+                   :plugins [[lein-midje "3.0-beta1"]]}
+             :bench {:source-paths ["bench"]}}
+  :aliases {"bench" ["with-profile" "bench" "run" "-m" "crustimoney.bench"]})
@@ -0,0 +1,37 @@
+(ns crustimoney.builder
+  "This namespace contains the protocol for building the result of a parse.
+  The engines call a builder while parsing, so a builder can construct any
+  kind of result directly, instead of walking the AST afterwards. A builder
+  is passed to `crustimoney.parse/parse` using the `:builder` option.")
+
+
+;;; The builder protocol.
+
+;; The content of a rule is built as follows. A rule with a terminal parsing
+;; expression, or a rule parsed as a terminal (with a minus sign in its name),
+;; gets the content returned by `terminal`. A rule with a vector expression
+;; starts a result with `begin-rule`, to which the content of every item is
+;; added using `child` or `repetition`, and gets the content returned by
+;; `end-rule`. A nested vector is built the same way, as part of the same
+;; rule, after which its content is added to the result of the outer vector.
+;;
+;; The same content may be added to several results, and results may be
+;; discarded when the parser backtracks, so a builder should not mutate the
+;; results or have other side effects.
+
+(defprotocol Builder
+  (begin-rule [builder rule]
+    "Returns a new result for parsing a vector within the `rule`.")
+  (terminal [builder rule input start end]
+    "Returns the content of the terminal `rule`, which matched the `input` (a
+    CharSequence) between the offsets `start` and `end`.")
+  (child [builder result rule item content]
+    "Returns the `result` of a vector within the `rule`, with the `content` of
+    the `item` added. The item is the keyword of a rule, which may be the rule
+    itself, or a nested vector.")
+  (repetition [builder result rule repetition contents]
+    "Returns the `result` of a vector within the `rule`, with the `contents` of
+    every iteration of the `repetition` added. A content is that of the
+    repeated expression, which is parsed like a nested vector.")
+  (end-rule [builder result rule]
+    "Returns the content of a vector within the `rule`, given its `result`."))
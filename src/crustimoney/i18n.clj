@@ -12,7 +12,12 @@
    :string-terminal       "string"
    :regex-terminal        "a character sequence that matches"
    :expected-terminal     "expected %s '%s'"
-   :invalid-parsing-expr  "An instance of %s is not a valid parsing expression."})
+   :invalid-parsing-expr  "An instance of %s is not a valid parsing expression."
+   :file-too-large        "The file %s is larger than %s bytes."
+   :record-too-large      "The record at position %s is longer than %s bytes."
+   :session-finished      "Text was pushed to a session that has been finished."
+   :stream-too-large      "The text read is longer than %s characters."
+   :window-exceeded       "Backtracked to position %s, before the text kept in memory from position %s."})
 
 (def ^{:doc "Dutch language."}
   lang-nl
@@ -21,7 +26,12 @@
    :string-terminal       "tekenreeks"
    :regex-terminal        "een tekenreeks dat overeenkomt met"
    :expected-terminal     "verwachtte %s '%s'"
-   :invalid-parsing-expr  "Een instantie van %s is niet een geldige expressie."})
+   :invalid-parsing-expr  "Een instantie van %s is niet een geldige expressie."
+   :file-too-large        "Het bestand %s is groter dan %s bytes."
+   :record-too-large      "Het record op positie %s is langer dan %s bytes."
+   :session-finished      "Er werd tekst toegevoegd aan een sessie die al is afgesloten."
+   :stream-too-large      "De gelezen tekst is langer dan %s tekens."
+   :window-exceeded       "Teruggegaan naar positie %s, voor de tekst in het geheugen vanaf positie %s."})
 
 
 ;;; Core functions.
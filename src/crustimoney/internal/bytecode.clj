@@ -0,0 +1,522 @@
+(ns crustimoney.internal.bytecode
+  "This namespace contains the bytecode backend of the grammar compiler. It
+  generates a JVM class for a rules map, with a method for every rule in which
+  the terminals are matched inline. These are not intended to be called
+  directly by the user."
+  (:require [crustimoney.internal.core :as core]
+            [crustimoney.internal.compiler :as compiler]
+            [crustimoney.builder :as builder])
+  (:use [crustimoney.internal.utils])
+  (:import [clojure.asm ClassWriter MethodVisitor Opcodes Label]
+           [crustimoney.internal.core Repetition]
+           [crustimoney.internal.compiler IContext Node Grammar]))
+
+
+;;; The generated class.
+
+;; A generated class has a method `r<id>` for every rule, which takes care of
+;; the memoization and the text content of the rule, and a method `b<id>` that
+;; parses the body of the rule. The objects that cannot be expressed in
+;; bytecode, like the regular expressions and the functions building the
+;; vector-results, are kept in the constants array `k` of the instance.
+(definterface IGenerated
+  (^long rule [^long id ^crustimoney.internal.compiler.IContext ctx ^long pos]))
+
+(def ^:private object "java/lang/Object")
+(def ^:private ifn "clojure/lang/IFn")
+(def ^:private context "crustimoney/internal/compiler/IContext")
+(def ^:private char-sequence "java/lang/CharSequence")
+(def ^:private matcher "java/util/regex/Matcher")
+(def ^:private rule-desc "(Lcrustimoney/internal/compiler/IContext;J)J")
+
+(def ^:private class-counter (atom 0))
+
+(defn- invoke-desc
+  "Returns the descriptor of IFn.invoke with `n` arguments."
+  [n]
+  (str "(" (apply str (repeat n "Ljava/lang/Object;")) ")Ljava/lang/Object;"))
+
+
+;;; Emitting instructions.
+
+;; While generating a method, the state is a map holding the MethodVisitor
+;; `:mv`, an atom with the next free local variable `:locals`, and the
+;; generator `:gen`. The generator holds the rules, the ids of the rules, the
+;; constants and the number of regular expressions.
+
+(defn- local!
+  "Reserves a local variable of `size` slots and returns its index."
+  [{:keys [locals]} size]
+  (- (swap! locals + size) size))
+
+(defn- constant!
+  "Adds `x` to the constants of the generated class and returns its index."
+  [{{:keys [^java.util.List constants]} :gen} x]
+  (.add constants x)
+  (dec (.size constants)))
+
+(defn- push-constant
+  "Emits the instructions pushing the constant `x` on the stack, cast to the
+  internal class name `cast` if given."
+  [{:keys [^MethodVisitor mv gen] :as m} x & [cast]]
+  (.visitVarInsn mv Opcodes/ALOAD 0)
+  (.visitFieldInsn mv Opcodes/GETFIELD (:owner gen) "k" "[Ljava/lang/Object;")
+  (.visitLdcInsn mv (int (constant! m x)))
+  (.visitInsn mv Opcodes/AALOAD)
+  (when cast (.visitTypeInsn mv Opcodes/CHECKCAST cast)))
+
+(defn- invoke-context
+  "Emits a call to the `method` of the context on the stack."
+  [^MethodVisitor mv method desc]
+  (.visitMethodInsn mv Opcodes/INVOKEINTERFACE context method desc))
+
+(defn- fail-terminal
+  "Emits the code at `label` that records the failure to match the terminal
+  `expression` at the offset in local `p`, and jumps to `fail`."
+  [{:keys [^MethodVisitor mv] :as m} ^Label label expression p fail]
+  (.visitLabel mv label)
+  (.visitVarInsn mv Opcodes/ALOAD 1)
+  (.visitVarInsn mv Opcodes/LLOAD p)
+  (push-constant m expression)
+  (invoke-context mv "fail" "(JLjava/lang/Object;)Ljava/lang/Object;")
+  (.visitInsn mv Opcodes/POP)
+  (.visitJumpInsn mv Opcodes/GOTO fail))
+
+(defn- push-char-at
+  "Emits the instructions pushing the character of the input at the offset in
+  local `p` plus `i`."
+  [^MethodVisitor mv p i]
+  (.visitVarInsn mv Opcodes/ALOAD 4)
+  (.visitVarInsn mv Opcodes/LLOAD p)
+  (.visitInsn mv Opcodes/L2I)
+  (when (pos? i)
+    (.visitLdcInsn mv (int i))
+    (.visitInsn mv Opcodes/IADD))
+  (.visitMethodInsn mv Opcodes/INVOKEINTERFACE char-sequence "charAt" "(I)C"))
+
+(defn- check-length
+  "Emits the check whether `n` characters are left in the input after the
+  offset in local `p`, jumping to `label` if not."
+  [^MethodVisitor mv p n ^Label label]
+  (.visitVarInsn mv Opcodes/LLOAD p)
+  (.visitLdcInsn mv (long n))
+  (.visitInsn mv Opcodes/LADD)
+  (.visitVarInsn mv Opcodes/ILOAD 5)
+  (.visitInsn mv Opcodes/I2L)
+  (.visitInsn mv Opcodes/LCMP)
+  (.visitJumpInsn mv Opcodes/IFGT label))
+
+(defn- advance
+  "Emits the instructions adding `n` to the offset in local `p`."
+  [^MethodVisitor mv p n]
+  (.visitVarInsn mv Opcodes/LLOAD p)
+  (.visitLdcInsn mv (long n))
+  (.visitInsn mv Opcodes/LADD)
+  (.visitVarInsn mv Opcodes/LSTORE p))
+
+(defn- emit-string
+  "Emits the inlined match of the string (or character) `s`."
+  [{:keys [^MethodVisitor mv] :as m} expression ^String s p fail]
+  (let [failed (Label.)
+        done (Label.)]
+    (check-length mv p (.length s) failed)
+    (dotimes [i (.length s)]
+      (push-char-at mv p i)
+      (.visitLdcInsn mv (int (.charAt s i)))
+      (.visitJumpInsn mv Opcodes/IF_ICMPNE failed))
+    (advance mv p (.length s))
+    (.visitJumpInsn mv Opcodes/GOTO done)
+    (fail-terminal m failed expression p fail)
+    (.visitLabel mv done)))
+
+(defn- emit-regex
+  "Emits the match of the regular expression `pattern`, using the matcher of
+  the context."
+  [{:keys [^MethodVisitor mv gen] :as m} pattern p fail]
+  (let [failed (Label.)
+        done (Label.)
+        local (local! m 1)
+        id (dec (swap! (:regexes gen) inc))]
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (.visitLdcInsn mv (long id))
+    (push-constant m pattern "java/util/regex/Pattern")
+    (invoke-context mv "matcher" "(JLjava/util/regex/Pattern;)Ljava/util/regex/Matcher;")
+    (.visitVarInsn mv Opcodes/ASTORE local)
+    (.visitVarInsn mv Opcodes/ALOAD local)
+    (.visitVarInsn mv Opcodes/ALOAD 4)
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL matcher "reset"
+                      "(Ljava/lang/CharSequence;)Ljava/util/regex/Matcher;")
+    (.visitVarInsn mv Opcodes/LLOAD p)
+    (.visitInsn mv Opcodes/L2I)
+    (.visitVarInsn mv Opcodes/ILOAD 5)
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL matcher "region"
+                      "(II)Ljava/util/regex/Matcher;")
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL matcher "lookingAt" "()Z")
+    (.visitJumpInsn mv Opcodes/IFEQ failed)
+    (.visitVarInsn mv Opcodes/ALOAD local)
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL matcher "end" "()I")
+    (.visitInsn mv Opcodes/I2L)
+    (.visitVarInsn mv Opcodes/LSTORE p)
+    (.visitJumpInsn mv Opcodes/GOTO done)
+    (fail-terminal m failed pattern p fail)
+    (.visitLabel mv done)))
+
+(defn- emit-rule-call
+  "Emits the call to the method of the rule `nonterminal`."
+  [{:keys [^MethodVisitor mv gen]} nonterminal as-terminal p ^Label fail]
+  (let [id (get @(:ids gen) [nonterminal as-terminal])]
+    (.visitVarInsn mv Opcodes/ALOAD 0)
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (.visitVarInsn mv Opcodes/LLOAD p)
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL (:owner gen) (str "r" id) rule-desc)
+    (.visitVarInsn mv Opcodes/LSTORE p)
+    (.visitVarInsn mv Opcodes/LLOAD p)
+    (.visitInsn mv Opcodes/LCONST_0)
+    (.visitInsn mv Opcodes/LCMP)
+    (.visitJumpInsn mv Opcodes/IFLT fail)))
+
+(declare emit-expression)
+
+(defn- emit-sequence
+  "Emits the items of the `alternative` in sequence. Within the rule `current`
+  the vector-result is built in a local variable, and the content is set on
+  the context when the sequence has been parsed."
+  [{:keys [^MethodVisitor mv] :as m} alternative current p fail]
+  (if (nil? current)
+    (doseq [item alternative]
+      (emit-expression m item nil p fail))
+    (let [vector-result (local! m 1)]
+      (push-constant m #(builder/begin-rule % current) ifn)
+      (.visitVarInsn mv Opcodes/ALOAD 1)
+      (invoke-context mv "builder" "()Ljava/lang/Object;")
+      (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 1))
+      (.visitVarInsn mv Opcodes/ASTORE vector-result)
+      (doseq [item alternative]
+        (emit-expression m item current p fail)
+        (when-let [combiner (compiler/combiner item current)]
+          (push-constant m combiner ifn)
+          (.visitVarInsn mv Opcodes/ALOAD 1)
+          (invoke-context mv "builder" "()Ljava/lang/Object;")
+          (.visitVarInsn mv Opcodes/ALOAD vector-result)
+          (.visitVarInsn mv Opcodes/ALOAD 1)
+          (invoke-context mv "value" "()Ljava/lang/Object;")
+          (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 3))
+          (.visitVarInsn mv Opcodes/ASTORE vector-result)))
+      (.visitVarInsn mv Opcodes/ALOAD 1)
+      (push-constant m #(builder/end-rule %1 %2 current) ifn)
+      (.visitVarInsn mv Opcodes/ALOAD 1)
+      (invoke-context mv "builder" "()Ljava/lang/Object;")
+      (.visitVarInsn mv Opcodes/ALOAD vector-result)
+      (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 2))
+      (invoke-context mv "setValue" "(Ljava/lang/Object;)Ljava/lang/Object;")
+      (.visitInsn mv Opcodes/POP))))
+
+(defn- emit-vector
+  "Emits the alternatives of the vector `vect`, restoring the offset in local
+  `p` before every next alternative."
+  [{:keys [^MethodVisitor mv] :as m} vect current p fail]
+  (let [alternatives (map core/group-repetitions (core/vector-alternatives vect))]
+    (if (= 1 (count alternatives))
+      (emit-sequence m (first alternatives) current p fail)
+      (let [start (local! m 2)
+            done (Label.)]
+        (.visitVarInsn mv Opcodes/LLOAD p)
+        (.visitVarInsn mv Opcodes/LSTORE start)
+        (doseq [[alternative last?] (map vector alternatives
+                                         (concat (repeat (dec (count alternatives)) false)
+                                                 [true]))]
+          (let [next-alternative (if last? fail (Label.))]
+            (emit-sequence m alternative current p next-alternative)
+            (.visitJumpInsn mv Opcodes/GOTO done)
+            (when-not last?
+              (.visitLabel mv next-alternative)
+              (.visitVarInsn mv Opcodes/LLOAD start)
+              (.visitVarInsn mv Opcodes/LSTORE p))))
+        (.visitLabel mv done)))))
+
+(defn- emit-repetition
+  "Emits the loop for the Repetition `repetition`. The offset in local `p` is
+  saved before every iteration, and restored when the iteration fails. Within
+  the rule `current`, the contents of the iterations are collected in a
+  vector, which is set on the context when the loop is done."
+  [{:keys [^MethodVisitor mv] :as m} {:keys [expression kind separator]} current p fail]
+  (let [start (local! m 2)
+        contents (local! m 1)
+        first-failed (Label.)
+        next-iteration (Label.)
+        next-failed (Label.)
+        done (Label.)
+        iteration (fn [items ^Label failed check]
+                    (.visitVarInsn mv Opcodes/LLOAD p)
+                    (.visitVarInsn mv Opcodes/LSTORE start)
+                    (emit-sequence m items current p failed)
+                    (when current
+                      (push-constant m conj ifn)
+                      (.visitVarInsn mv Opcodes/ALOAD contents)
+                      (.visitVarInsn mv Opcodes/ALOAD 1)
+                      (invoke-context mv "value" "()Ljava/lang/Object;")
+                      (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 2))
+                      (.visitVarInsn mv Opcodes/ASTORE contents))
+                    (when check
+                      ;; An iteration that did not advance ends the repetition.
+                      (.visitVarInsn mv Opcodes/LLOAD p)
+                      (.visitVarInsn mv Opcodes/LLOAD start)
+                      (.visitInsn mv Opcodes/LCMP)
+                      (.visitJumpInsn mv Opcodes/IFEQ done)))]
+    (when current
+      (push-constant m [])
+      (.visitVarInsn mv Opcodes/ASTORE contents))
+    ;; A separator may follow a first item that did not advance.
+    (iteration [expression] first-failed (not (or (= kind :optional) separator)))
+    (if (= kind :optional)
+      (.visitJumpInsn mv Opcodes/GOTO done)
+      (do (.visitLabel mv next-iteration)
+          (iteration (if separator [separator expression] [expression]) next-failed true)
+          (.visitJumpInsn mv Opcodes/GOTO next-iteration)))
+    ;; Without any iteration, a :one-or-more repetition fails.
+    (.visitLabel mv first-failed)
+    (.visitVarInsn mv Opcodes/LLOAD start)
+    (.visitVarInsn mv Opcodes/LSTORE p)
+    (when (= kind :one-or-more)
+      (.visitJumpInsn mv Opcodes/GOTO fail))
+    (.visitJumpInsn mv Opcodes/GOTO done)
+    (.visitLabel mv next-failed)
+    (.visitVarInsn mv Opcodes/LLOAD start)
+    (.visitVarInsn mv Opcodes/LSTORE p)
+    (.visitLabel mv done)
+    (when current
+      (.visitVarInsn mv Opcodes/ALOAD 1)
+      (.visitVarInsn mv Opcodes/ALOAD contents)
+      (invoke-context mv "setValue" "(Ljava/lang/Object;)Ljava/lang/Object;")
+      (.visitInsn mv Opcodes/POP))))
+
+(defn- emit-expression
+  "Emits the code matching the `expression` on the offset in local `p`. On a
+  match, the local holds the end offset. Otherwise it jumps to `fail`."
+  [m expression current p fail]
+  (cond (vector? expression) (emit-vector m expression current p fail)
+        (keyword? expression) (emit-rule-call m expression (nil? current) p fail)
+        (instance? Repetition expression) (emit-repetition m expression current p fail)
+        (char? expression) (emit-string m expression (str expression) p fail)
+        (string? expression) (emit-string m expression expression p fail)
+        (regex? expression) (emit-regex m expression p fail)
+        :else (compiler/invalid-expression expression)))
+
+
+;;; Emitting methods.
+
+(defn- method
+  "Returns a method state for a new method, which has its first free local
+  variable at index `locals`."
+  [^ClassWriter cw gen access name desc locals]
+  (let [mv (.visitMethod cw access name desc nil nil)]
+    (.visitCode mv)
+    {:mv mv :gen gen :locals (atom locals)}))
+
+(defn- end-method
+  [{:keys [^MethodVisitor mv]}]
+  (.visitMaxs mv 0 0)
+  (.visitEnd mv))
+
+(defn- emit-body
+  "Emits the method `b<id>`, which parses the `expression` of a rule."
+  [cw gen id expression current]
+  (let [{:keys [^MethodVisitor mv] :as m} (method cw gen Opcodes/ACC_PUBLIC
+                                                  (str "b" id) rule-desc 6)
+        fail (Label.)]
+    ;; Local 1 holds the context, 2 the offset, 4 the input and 5 its length.
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (invoke-context mv "input" "()Ljava/lang/CharSequence;")
+    (.visitVarInsn mv Opcodes/ASTORE 4)
+    (.visitVarInsn mv Opcodes/ALOAD 4)
+    (.visitMethodInsn mv Opcodes/INVOKEINTERFACE char-sequence "length" "()I")
+    (.visitVarInsn mv Opcodes/ISTORE 5)
+    (if (keyword? expression)
+      (compiler/invalid-expression expression)
+      (emit-expression m expression current 2 fail))
+    (.visitVarInsn mv Opcodes/LLOAD 2)
+    (.visitInsn mv Opcodes/LRETURN)
+    (.visitLabel mv fail)
+    (.visitLdcInsn mv (long -1))
+    (.visitInsn mv Opcodes/LRETURN)
+    (end-method m)))
+
+(defn- box-long
+  [^MethodVisitor mv local]
+  (.visitVarInsn mv Opcodes/LLOAD local)
+  (.visitMethodInsn mv Opcodes/INVOKESTATIC "java/lang/Long" "valueOf"
+                    "(J)Ljava/lang/Long;"))
+
+(defn- emit-rule
+  "Emits the method `r<id>`, which calls `b<id>` when the result of the rule
+  `nonterminal` is not memoized, and sets the content of the text for rules of
+  kind `:text`."
+  [cw gen id nonterminal kind]
+  (let [{:keys [^MethodVisitor mv] :as m} (method cw gen Opcodes/ACC_PUBLIC
+                                                  (str "r" id) rule-desc 8)
+        miss (Label.)
+        skip-text (Label.)
+        done (Label.)]
+    ;; Local 4 holds the memoization column, 5 the end offset and 7 the
+    ;; memoized end offset.
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (.visitLdcInsn mv (long id))
+    (invoke-context mv "memoColumn" "(J)Ljava/lang/Object;")
+    (.visitVarInsn mv Opcodes/ASTORE 4)
+    (.visitVarInsn mv Opcodes/ALOAD 4)
+    (.visitJumpInsn mv Opcodes/IFNULL miss)
+    (push-constant m compiler/memo-lookup ifn)
+    (.visitVarInsn mv Opcodes/ALOAD 4)
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (box-long mv 2)
+    (push-constant m kind)
+    (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 4))
+    (.visitVarInsn mv Opcodes/ASTORE 7)
+    (.visitVarInsn mv Opcodes/ALOAD 7)
+    (.visitJumpInsn mv Opcodes/IFNULL miss)
+    (.visitVarInsn mv Opcodes/ALOAD 7)
+    (.visitTypeInsn mv Opcodes/CHECKCAST "java/lang/Number")
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL "java/lang/Number" "longValue" "()J")
+    (.visitInsn mv Opcodes/LRETURN)
+    (.visitLabel mv miss)
+    (.visitVarInsn mv Opcodes/ALOAD 0)
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (.visitVarInsn mv Opcodes/LLOAD 2)
+    (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL (:owner gen) (str "b" id) rule-desc)
+    (.visitVarInsn mv Opcodes/LSTORE 5)
+    (when (= kind :text)
+      (.visitVarInsn mv Opcodes/LLOAD 5)
+      (.visitInsn mv Opcodes/LCONST_0)
+      (.visitInsn mv Opcodes/LCMP)
+      (.visitJumpInsn mv Opcodes/IFLT skip-text)
+      (.visitVarInsn mv Opcodes/ALOAD 1)
+      (push-constant m compiler/text-content ifn)
+      (.visitVarInsn mv Opcodes/ALOAD 1)
+      (push-constant m nonterminal)
+      (box-long mv 2)
+      (box-long mv 5)
+      (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 4))
+      (invoke-context mv "setValue" "(Ljava/lang/Object;)Ljava/lang/Object;")
+      (.visitInsn mv Opcodes/POP)
+      (.visitLabel mv skip-text))
+    (.visitVarInsn mv Opcodes/ALOAD 4)
+    (.visitJumpInsn mv Opcodes/IFNULL done)
+    (push-constant m compiler/memo-store ifn)
+    (.visitVarInsn mv Opcodes/ALOAD 4)
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (box-long mv 2)
+    (push-constant m kind)
+    (box-long mv 5)
+    (.visitMethodInsn mv Opcodes/INVOKEINTERFACE ifn "invoke" (invoke-desc 5))
+    (.visitInsn mv Opcodes/POP)
+    (.visitLabel mv done)
+    (.visitVarInsn mv Opcodes/LLOAD 5)
+    (.visitInsn mv Opcodes/LRETURN)
+    (end-method m)))
+
+(defn- emit-dispatch
+  "Emits the method `rule`, which calls the method of the rule with the given
+  id."
+  [cw gen n]
+  (let [{:keys [^MethodVisitor mv] :as m}
+        (method cw gen Opcodes/ACC_PUBLIC "rule"
+                "(JLcrustimoney/internal/compiler/IContext;J)J" 6)
+        labels (vec (repeatedly n #(Label.)))
+        default (Label.)]
+    (.visitVarInsn mv Opcodes/LLOAD 1)
+    (.visitInsn mv Opcodes/L2I)
+    (.visitTableSwitchInsn mv 0 (dec n) default (into-array Label labels))
+    (doseq [id (range n)]
+      (.visitLabel mv ^Label (labels id))
+      (.visitVarInsn mv Opcodes/ALOAD 0)
+      (.visitVarInsn mv Opcodes/ALOAD 3)
+      (.visitVarInsn mv Opcodes/LLOAD 4)
+      (.visitMethodInsn mv Opcodes/INVOKEVIRTUAL (:owner gen) (str "r" id) rule-desc)
+      (.visitInsn mv Opcodes/LRETURN))
+    (.visitLabel mv default)
+    (.visitLdcInsn mv (long -1))
+    (.visitInsn mv Opcodes/LRETURN)
+    (end-method m)))
+
+(defn- emit-constructor
+  [^ClassWriter cw owner]
+  (let [mv (.visitMethod cw Opcodes/ACC_PUBLIC "<init>" "([Ljava/lang/Object;)V" nil nil)]
+    (.visitCode mv)
+    (.visitVarInsn mv Opcodes/ALOAD 0)
+    (.visitMethodInsn mv Opcodes/INVOKESPECIAL object "<init>" "()V")
+    (.visitVarInsn mv Opcodes/ALOAD 0)
+    (.visitVarInsn mv Opcodes/ALOAD 1)
+    (.visitFieldInsn mv Opcodes/PUTFIELD owner "k" "[Ljava/lang/Object;")
+    (.visitInsn mv Opcodes/RETURN)
+    (.visitMaxs mv 0 0)
+    (.visitEnd mv)))
+
+
+;;; Collecting the rules.
+
+(defn- collect-rules
+  "Returns a map from [nonterminal as-terminal] to an id, for every rule that
+  is reachable from the rule `names`, parsed normally or as a terminal."
+  [rules names]
+  (let [ids (atom {})]
+    (letfn [(visit-rule [nonterminal as-terminal]
+              (when-not (@ids [nonterminal as-terminal])
+                (swap! ids assoc [nonterminal as-terminal] (count @ids))
+                (let [{:keys [expression current]}
+                      (compiler/rule-info rules nonterminal as-terminal)]
+                  (when (vector? expression)
+                    (visit-vector expression current)))))
+            (visit-vector [vect current]
+              (doseq [item vect]
+                (visit-item item current)))
+            (visit-item [item current]
+              (cond (vector? item) (visit-vector item current)
+                    (keyword? item) (visit-rule item (nil? current))
+                    (instance? Repetition item)
+                    (do (visit-item (:expression item) current)
+                        (visit-item (:separator item) current))))]
+      (doseq [name names
+              as-terminal [false true]]
+        (visit-rule name as-terminal)))
+    @ids))
+
+
+;;; Namespace entry functions.
+
+(defn compile-grammar
+  "Compiles the `rules` map to a Grammar, which holds a rule node for every
+  rule to start parsing from. The rule nodes call the methods of a class that
+  is generated for the rules."
+  [rules]
+  (let [names (compiler/rule-names rules)
+        ids (collect-rules rules names)
+        owner (str "crustimoney/generated/Grammar" (swap! class-counter inc))
+        gen {:owner owner
+             :ids (atom ids)
+             :constants (java.util.ArrayList.)
+             :regexes (atom 0)}
+        cw (ClassWriter. ClassWriter/COMPUTE_MAXS)]
+    (.visit cw Opcodes/V1_5 (+ Opcodes/ACC_PUBLIC Opcodes/ACC_SUPER) owner nil object
+            (into-array String ["crustimoney/internal/bytecode/IGenerated"]))
+    (.visitEnd (.visitField cw Opcodes/ACC_PUBLIC "k" "[Ljava/lang/Object;" nil nil))
+    (emit-constructor cw owner)
+    (doseq [[[nonterminal as-terminal] id] ids]
+      (let [{:keys [expression kind current]}
+            (compiler/rule-info rules nonterminal as-terminal)]
+        (emit-body cw gen id expression current)
+        (emit-rule cw gen id nonterminal kind)))
+    (emit-dispatch cw gen (count ids))
+    (.visitEnd cw)
+    (let [class-name (.replace owner \/ \.)
+          ^Class cls (.defineClass ^clojure.lang.DynamicClassLoader (clojure.lang.RT/makeClassLoader)
+                                   class-name (.toByteArray cw) nil)
+          ^IGenerated generated (.newInstance (.getConstructor cls (into-array Class [(class (object-array 0))]))
+                                              (object-array [(.toArray ^java.util.List (:constants gen))]))
+          start-nodes (fn [as-terminal]
+                        (into {} (for [name names
+                                       :let [id (long (ids [name as-terminal]))]]
+                                   [name (reify Node
+                                           (parse [_ ctx pos]
+                                             (.rule generated id ctx pos)))])))]
+      (Grammar. rules (start-nodes false) (start-nodes true) (count ids)
+                @(:regexes gen)))))
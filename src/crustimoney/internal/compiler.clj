@@ -0,0 +1,377 @@
+(ns crustimoney.internal.compiler
+  "This namespace contains the grammar compiler. It walks a rules map once and
+  turns every parsing expression into a node, which parses the input by
+  calling the nodes of its parts directly. These are not intended to be called
+  directly by the user."
+  (:require [crustimoney.internal.core :as core]
+            [crustimoney.builder :as builder])
+  (:use [crustimoney.internal.utils]
+        [crustimoney.i18n :only (i18n)])
+  (:import [crustimoney.internal.core Repetition]))
+
+
+;;; The parse context.
+
+;; The context holds everything that changes during a single parse. A node
+;; returns the offset where its match ends, or -1 if it did not match. The
+;; content of a succesful match, if any, is left in the value of the context.
+(definterface IContext
+  (^CharSequence input [])
+  (value [])
+  (setValue [value])
+  (fail [^long pos expression])
+  (^long errorsPos [])
+  (errors [])
+  (^java.util.regex.Matcher matcher [^long id ^java.util.regex.Pattern pattern])
+  (memoColumn [^long slot])
+  (^longs stats [])
+  (builder []))
+
+(deftype Context [^CharSequence input
+                  ^:unsynchronized-mutable value
+                  ^:unsynchronized-mutable ^long errors-pos
+                  ^java.util.Set errors
+                  ^objects matchers
+                  ^objects memo
+                  ^longs stats
+                  builder]
+  IContext
+  (input [_] input)
+  (value [_] value)
+  (setValue [_ v] (set! value v) nil)
+  (fail [_ pos expression]
+    ;; Only the errors at the furthest position are kept, or only that
+    ;; position when there is no errors set.
+    (when (> pos errors-pos)
+      (when errors (.clear errors))
+      (set! errors-pos pos))
+    (when (and errors (= pos errors-pos))
+      (.add errors expression))
+    nil)
+  (errorsPos [_] errors-pos)
+  (errors [_] errors)
+  (matcher [_ id pattern]
+    (or (aget matchers id)
+        (aset matchers id (.matcher pattern ""))))
+  (memoColumn [_ slot]
+    (when memo
+      (or (aget memo slot)
+          (aset memo slot (object-array (inc (.length input)))))))
+  (stats [_] stats)
+  (builder [_] builder))
+
+(definterface Node
+  (^long parse [^crustimoney.internal.compiler.IContext ctx ^long pos]))
+
+(defn text-content
+  "Returns the content of the terminal rule `nonterminal`, which matched the
+  input between the offsets `start` and `end`."
+  [^IContext ctx nonterminal start end]
+  (builder/terminal (.builder ctx) nonterminal (.input ctx) start end))
+
+
+;;; The terminal nodes.
+
+(defn- char-node
+  "Returns a node matching the character `c`."
+  [c]
+  (let [c (char c)]
+    (reify Node
+      (parse [_ ctx pos]
+        (let [input (.input ctx)]
+          (if (and (< pos (.length input)) (= c (.charAt input pos)))
+            (inc pos)
+            (do (.fail ctx pos c) -1)))))))
+
+(defn- string-node
+  "Returns a node matching the string `s`."
+  [^String s]
+  (let [length (.length s)]
+    (reify Node
+      (parse [_ ctx pos]
+        (let [input (.input ctx)
+              end (+ pos length)]
+          (if (and (<= end (.length input))
+                   (loop [i 0]
+                     (cond (= i length) true
+                           (= (.charAt s i) (.charAt input (+ pos i))) (recur (inc i))
+                           :else false)))
+            end
+            (do (.fail ctx pos s) -1)))))))
+
+(defn- regex-node
+  "Returns a node matching the regular expression `pattern`. The `id` denotes
+  the slot of the node's matcher in the context."
+  [^java.util.regex.Pattern pattern id]
+  (let [id (long id)]
+    (reify Node
+      (parse [_ ctx pos]
+        (let [input (.input ctx)
+              matcher (.matcher ctx id pattern)]
+          (.reset matcher input)
+          (.region matcher pos (.length input))
+          (if (.lookingAt matcher)
+            (.end matcher)
+            (do (.fail ctx pos pattern) -1)))))))
+
+
+;;; The vector nodes.
+
+(declare compile-expression)
+
+(defn- sequence-node
+  "Returns a node matching the `nodes` in sequence. The `combiners` hold for
+  every node a function that adds the node's content to a vector-result using
+  the builder, or nil if it is not part of the result. When `current` is nil,
+  the sequence is parsed as a terminal and no content is built."
+  [nodes combiners current]
+  (let [^objects nodes (into-array Node nodes)
+        ^objects combiners (object-array combiners)
+        n (alength nodes)]
+    (if (nil? current)
+      (reify Node
+        (parse [_ ctx pos]
+          (loop [i 0 pos pos]
+            (if (or (= i n) (neg? pos))
+              pos
+              (recur (inc i) (.parse ^Node (aget nodes i) ctx pos))))))
+      (reify Node
+        (parse [_ ctx pos]
+          (loop [i 0 pos pos vector-result (builder/begin-rule (.builder ctx) current)]
+            (if (= i n)
+              (do (.setValue ctx (builder/end-rule (.builder ctx) vector-result current))
+                  pos)
+              (let [end (.parse ^Node (aget nodes i) ctx pos)]
+                (if (neg? end)
+                  -1
+                  (recur (inc i)
+                         end
+                         (if-let [combiner (aget combiners i)]
+                           (combiner (.builder ctx) vector-result (.value ctx))
+                           vector-result)))))))))))
+
+(defn- repetition-node
+  "Returns a node matching the `first-node` and then the `next-node` as often
+  as they match, for a Repetition of the given `kind`. Within the rule
+  `current`, the contents of the iterations are collected in a vector."
+  [first-node next-node kind current]
+  (let [max-count (if (= kind :optional) 1 -1)
+        min-count (if (= kind :one-or-more) 1 0)]
+    (reify Node
+      (parse [_ ctx pos]
+        (loop [n 0 pos pos contents (transient [])]
+          (let [^Node node (if (zero? n) first-node next-node)
+                end (if (= n max-count) -1 (.parse node ctx pos))]
+            (cond (neg? end)
+                  (if (< n min-count)
+                    -1
+                    (do (when current (.setValue ctx (persistent! contents)))
+                        pos))
+                  ;; An iteration that did not advance ends the repetition,
+                  ;; unless a separator may follow the first item.
+                  (and (= end pos) (or (pos? n) (identical? first-node next-node)))
+                  (do (when current (.setValue ctx (persistent! (conj! contents (.value ctx)))))
+                      end)
+                  :else
+                  (recur (inc n) end (if current (conj! contents (.value ctx)) contents)))))))))
+
+(defn- choice-node
+  "Returns a node matching the first of the `alternatives` that matches."
+  [alternatives]
+  (if (= 1 (count alternatives))
+    (first alternatives)
+    (let [^objects alternatives (into-array Node alternatives)
+          n (alength alternatives)]
+      (reify Node
+        (parse [_ ctx pos]
+          (loop [i 0]
+            (if (= i n)
+              -1
+              (let [end (.parse ^Node (aget alternatives i) ctx pos)]
+                (if (neg? end) (recur (inc i)) end)))))))))
+
+
+;;; The rule nodes.
+
+(defn memo-lookup
+  "Looks up the memoized result of a rule of the given `kind` in the `column`
+  of the memoization table, at `pos`. Returns the end offset on a hit, setting
+  the value of the context, or nil on a miss."
+  [^objects column ^IContext ctx pos kind]
+  (when-let [entry (aget column pos)]
+    (let [^longs stats (.stats ctx)
+          end (if (= entry ::failed) -1 (first entry))]
+      (aset stats 0 (inc (aget stats 0)))
+      (when (and (>= end 0) (not= kind :none))
+        (.setValue ctx (second entry)))
+      end)))
+
+(defn memo-store
+  "Stores the result of a rule of the given `kind` in the `column` of the
+  memoization table, at `pos`. The value, if any, is taken from the context."
+  [^objects column ^IContext ctx pos kind end]
+  (let [^longs stats (.stats ctx)]
+    (aset stats 1 (inc (aget stats 1)))
+    (aset column pos (if (neg? end)
+                       ::failed
+                       [end (when-not (= kind :none) (.value ctx))]))))
+
+;; A rule node parses the expression of a rule, which is linked after the rule
+;; node has been created, as rules may refer to each other. The kind of the
+;; rule says what the content of the rule is: the `:value` left by its body,
+;; the `:text` that it matched, or `:none` when it is parsed as a terminal.
+(deftype Rule [name ^long slot kind ^objects body]
+  Node
+  (parse [_ ctx pos]
+    (let [column (.memoColumn ctx slot)]
+      (if-let [end (when column (memo-lookup column ctx pos kind))]
+        end
+        (let [end (.parse ^Node (aget body 0) ctx pos)]
+          (when (and (>= end 0) (= kind :text))
+            (.setValue ctx (text-content ctx name pos end)))
+          (when column
+            (memo-store column ctx pos kind end))
+          end)))))
+
+(defn rule-info
+  "Returns a map describing the rule `nonterminal` in the `rules` map, parsed
+  as a terminal if `as-terminal` is true. It holds the `:expression` of the
+  rule, the `:kind` of its content and the rule that is `:current` while
+  parsing its expression, which is nil if it is parsed as a terminal."
+  [rules nonterminal as-terminal]
+  (let [terminal-name (keyword (str (name nonterminal) \-))
+        expression (or (rules nonterminal) (rules terminal-name))
+        as-terminal? (or as-terminal (contains? rules terminal-name))]
+    {:expression expression
+     :kind (cond as-terminal :none
+                 (or as-terminal? (not (vector? expression))) :text
+                 :else :value)
+     :current (when-not as-terminal? nonterminal)}))
+
+(defn rule-names
+  "Returns the names of the rules in the `rules` map that can be started
+  from. These are the names without the minus sign, and the keys themselves."
+  [rules]
+  (mapcat (fn [rule]
+            (distinct [(keyword (.replaceAll (name rule) "-$" "")) rule]))
+          (keys rules)))
+
+(defn combiner
+  "Returns the function that adds the content of the vector `item` to a
+  vector-result using a builder, for a vector parsed within the rule
+  `current`. The function takes the builder, the vector-result and the
+  content."
+  [item current]
+  (cond (instance? Repetition item)
+        #(builder/repetition %1 %2 current item %3)
+        (or (vector? item) (keyword? item))
+        #(builder/child %1 %2 current item %3)))
+
+(defn invalid-expression
+  "Throws the exception for an invalid parsing `expression`."
+  [expression]
+  (throw (Exception. ^String (i18n :invalid-parsing-expr (class expression)))))
+
+(defn- compile-vector
+  "Returns the node for the vector expression `vect`, as part of the rule
+  `current`, or parsed as a terminal if `current` is nil."
+  [compiler vect current]
+  (choice-node
+    (for [alternative (map core/group-repetitions (core/vector-alternatives vect))]
+      (sequence-node (map #(compile-expression compiler % current) alternative)
+                     (when current (map #(combiner % current) alternative))
+                     current))))
+
+(defn- compile-terminal
+  "Returns the node for the terminal `expression`."
+  [{:keys [regexes]} expression]
+  (cond (char? expression) (char-node expression)
+        (string? expression) (string-node expression)
+        (regex? expression) (regex-node expression (dec (swap! regexes inc)))
+        :else (invalid-expression expression)))
+
+(defn- rule-node
+  "Returns the rule node for the `nonterminal`, parsed as a terminal if
+  `as-terminal` is true. Every rule node is created only once per compiler."
+  [{:keys [rules nodes] :as compiler} nonterminal as-terminal]
+  (or (@nodes [nonterminal as-terminal])
+      (let [{:keys [expression kind current]} (rule-info rules nonterminal as-terminal)
+            node (Rule. nonterminal (count @nodes) kind (object-array 1))]
+        (swap! nodes assoc [nonterminal as-terminal] node)
+        (aset ^objects (.body node) 0
+              (if (vector? expression)
+                (compile-vector compiler expression current)
+                (compile-terminal compiler expression)))
+        node)))
+
+(defn- compile-expression
+  "Returns the node for a parsing `expression` that is an item of a vector,
+  which is part of the rule `current`, or is parsed as a terminal if `current`
+  is nil."
+  [compiler expression current]
+  (cond (vector? expression) (compile-vector compiler expression current)
+        (keyword? expression) (rule-node compiler expression (nil? current))
+        (instance? Repetition expression)
+        (let [{:keys [expression kind separator]} expression
+              first-node (compile-vector compiler [expression] current)]
+          (repetition-node first-node
+                           (if separator
+                             (compile-vector compiler [separator expression] current)
+                             first-node)
+                           kind current))
+        :else (compile-terminal compiler expression)))
+
+
+;;; Namespace entry functions.
+
+(defrecord Grammar [rules starts recognizers slots regexes])
+
+(defn compile-grammar
+  "Compiles the `rules` map to a Grammar, which holds a rule node for every
+  rule, to start parsing from. The recognizers hold the same rules parsed as
+  terminals, which build no content."
+  [rules]
+  (let [compiler {:rules rules :nodes (atom {}) :regexes (atom 0)}
+        starts (into {} (for [rule (rule-names rules)]
+                          [rule (rule-node compiler rule false)]))
+        recognizers (into {} (for [rule (rule-names rules)]
+                               [rule (rule-node compiler rule true)]))]
+    (Grammar. rules starts recognizers (count @(:nodes compiler))
+              @(:regexes compiler))))
+
+(defn grammar?
+  "Returns true if `x` is a compiled grammar."
+  [x]
+  (instance? Grammar x))
+
+(defn keep-errors?
+  "Returns true if the `options` of a parse ask for the expected terminals,
+  which is always the case unless it only recognizes the text."
+  [{:keys [recognize errors]}]
+  (or (not recognize) errors))
+
+(defn parse-grammar
+  "Parse the `text` using the compiled `grammar`, starting from the `start`
+  rule. The `options` are those of `crustimoney.parse/parse`, and when
+  `:recognize` is true, the start rule is parsed as a terminal. Returns a map
+  with the `:content` and the `:end` offset of the parse (or -1 when it
+  failed), the `:errors` and the `:errors-pos`, and the `:stats` of the cache.
+  The errors are the terminal expressions that were expected at the errors
+  position, or nil when they are not kept. The errors position is -1 when no
+  terminal has failed. The parse starts at the `:offset` in the text, or at
+  its start when that option is not given."
+  [{:keys [starts recognizers slots regexes]} start ^CharSequence text
+   {:keys [memoize recognize builder offset] :as options}]
+  (let [start-node (or ((if recognize recognizers starts) start)
+                       (invalid-expression nil))
+        ctx (Context. text nil -1 (when (keep-errors? options) (java.util.HashSet.))
+                      (object-array regexes)
+                      (when memoize (object-array slots))
+                      (long-array 2)
+                      (or builder core/ast-builder))
+        end (.parse ^Node start-node ctx (long (or offset 0)))]
+    {:content (.value ctx)
+     :end end
+     :errors (.errors ctx)
+     :errors-pos (.errorsPos ctx)
+     :stats (when memoize (core/memo-stats {:stats (.stats ctx)}))}))
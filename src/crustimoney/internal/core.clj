@@ -1,6 +1,8 @@
 (ns crustimoney.internal.core
   "This namespace contains the internal parse functions. These are not
   intended to be called directly by the user."
+  (:require [crustimoney.builder :as builder]
+            [crustimoney.internal.slice :as slice])
   (:use [crustimoney.internal.utils]
         [crustimoney.i18n :only (i18n)]))
 
@@ -10,7 +12,46 @@
 ;; The State record is merely here for documentation purposes of what the state
 ;; contains, and may yield some performance gains.
 (defrecord State
-  [rules remainder pos current as-terminal errors errors-pos])
+  [rules input pos current as-terminal errors errors-pos memo matchers tails builder])
+
+(defrecord Repetition [expression kind separator])
+
+(def ? '?)
+
+(def repetition-kinds
+  "The repetition operators that may follow an item in a vector, and the kind
+  of Repetition they make of it."
+  {* :zero-or-more
+   + :one-or-more
+   ? :optional})
+
+(defn vector-alternatives
+  "Splits a vector parsing expression on the choice operator."
+  [vect]
+  (loop [vect vect alternatives [] alternative []]
+    (cond (empty? vect) (conj alternatives alternative)
+          (= / (first vect)) (recur (rest vect) (conj alternatives alternative) [])
+          :else (recur (rest vect) alternatives (conj alternative (first vect))))))
+
+(defn next-item
+  "Returns a tuple with the first item of the vector items `vect` and the items
+  after it. An item followed by repetition operators is returned as a
+  Repetition."
+  [vect]
+  (loop [item (first vect) vect (rest vect)]
+    (if-let [kind (and (not= / item) (repetition-kinds (first vect)))]
+      (recur (Repetition. item kind nil) (rest vect))
+      [item vect])))
+
+(defn group-repetitions
+  "Returns the items of the vector `vect`, with every item that is followed by
+  repetition operators replaced by a Repetition."
+  [vect]
+  (loop [vect vect items []]
+    (if (empty? vect)
+      items
+      (let [[item vect] (next-item vect)]
+        (recur vect (conj items item))))))
 
 (defn succes
   "Make a new succes map based on the parameters."
@@ -18,66 +59,184 @@
   {:succes (mapify content new-state)})
 
 (defn error
-  "Given an error `content` string and the current state, a map is returned with
-  the `:errors` and the `:errors-pos`. Based on the given state, only the
-  \"deepest\" errors remain."
-  [content {:keys [pos errors errors-pos] :as state}]
-  (let [[errors errors-pos] (cond (= pos errors-pos) [(conj errors content) errors-pos]
-                                  (> pos errors-pos) [#{content} pos]
-                                  :else [errors errors-pos])]
-    (mapify errors errors-pos)))
+  "Given the terminal `expression` that failed to parse and the current state, a
+  map is returned with the `:errors` and the `:errors-pos`. Based on the given
+  state, only the \"deepest\" errors remain. The errors are the expected
+  terminal expressions themselves; their messages are only formatted when the
+  parse has failed. When the state has no errors set, only the position is
+  kept."
+  [expression {:keys [pos errors errors-pos] :as state}]
+  (cond (= pos errors-pos) {:errors (when errors (conj errors expression))
+                            :errors-pos errors-pos}
+        (> pos errors-pos) {:errors (when errors #{expression}) :errors-pos pos}
+        :else {:errors errors :errors-pos errors-pos}))
 
 
 ;;; The vector parsing functions.
 
-(declare parse-terminal parse-nonterminal parse-vector)
+(declare skip-terminal parse-nonterminal parse-vector parse-repetition
+         parse-examined-repetition)
 
 (defn init-vector-result
   "Initialise a data structure for storing the result during the parsing of
   a vector."
   []
   ;; The first item in this tuple may hold the hash-map of the parsed vector
-  ;; items. The second may hold a sequence of recuring parse results or a
-  ;; string.
+  ;; items. The second may hold a sequence of recuring parse results.
   [nil nil])
 
+;; While parsing, the items of a recurring rule are kept in a seq, so the
+;; result of every recursion can be prepended in constant time. The seq is
+;; turned into the vector of the AST once, when it leaves the recursion.
+
+(defn finish-content
+  "Returns the `content` of a parse result as it appears in the AST."
+  [content]
+  (if (seq? content) (vec content) content))
+
+(defn add-nested
+  "Add the `content` of a nested vector to the `vector-result`."
+  [vector-result content]
+  (if (seq? content)
+    [(first vector-result) (if (empty? (second vector-result))
+                             content
+                             (apply list (concat content (second vector-result))))]
+    [(merge (first vector-result) content) (second vector-result)]))
+
+(defn add-recurring
+  "Add the `content` of a recurring rule (the rule that is currently parsed) to
+  the `vector-result`."
+  [vector-result content]
+  [(first vector-result)
+   (if (seq? content)
+     content
+     (if (empty? content) () (list content)))])
+
+(defn act
+  "Returns the value of the non-terminal `item` with the `content`: the result
+  of its function in the `actions` map, or the content as it appears in the
+  AST when it has none. An action is called when the whole rule has been
+  parsed, so not for the recurring contents of a rule."
+  [actions item content]
+  (let [content (finish-content content)]
+    (if-let [action (and actions (actions item))]
+      (action content)
+      content)))
+
+(defn add-nonterminal
+  "Add the `content` of the non-terminal `item` to the `vector-result`."
+  [vector-result item content]
+  [(assoc (first vector-result) item (finish-content content)) (second vector-result)])
+
+(defn add-repeated
+  "Add the `contents` of the iterations of a Repetition of the given `kind` to
+  the `vector-result`. The result is the same as for the recursive rule that
+  the repetition replaces: the first content is added like a nested vector,
+  and the others follow it like the contents of a recurring rule. As for the
+  rule `[:item :rule / ]`, a `:zero-or-more` repetition makes a sequence even
+  of a single content."
+  [vector-result contents kind]
+  (if (empty? contents)
+    vector-result
+    (let [vector-result (add-nested vector-result (first contents))
+          more (persistent! (reduce (fn [more content]
+                                      (cond (seq? content) (reduce conj! more content)
+                                            (empty? content) more
+                                            :else (conj! more content)))
+                                    (transient []) (rest contents)))]
+      (if (or (seq more) (= kind :zero-or-more))
+        [(first vector-result) (into (into () (rseq more)) (reverse (second vector-result)))]
+        vector-result))))
+
 (defn add-to-vector-result
   "Given a vector `item`, the current `vector-result`, the `content` of a
   succesful parse result and the current `state`, this function returns an
   updated vector-result."
-  [item vector-result content {:keys [current as-terminal] :as state}]
-  ;; Check if the non-terminal should be regarded as a terminal. If so, then
-  ;; append it to the second item of the tuple.
+  [item vector-result content {:keys [current as-terminal builder] :as state}]
+  ;; When parsing as a terminal, the content is the matched text, which is
+  ;; taken from the input when the terminal rule has been parsed.
   (if as-terminal
-    ;; If the parse result was in a map, then get the text value and add that
-    ;; to the current text. Otherwise, add the content to the current text
-    ;; directly.
-    (if (map? content)
-      [nil (str (second vector-result) (first (vals content)))]
-      [nil (str (second vector-result) content)])
+    vector-result
     ;; Add the content to the vector-result based on the type of vector item.
-    (cond (vector? item)
-          (if (vector? content)
-            [(first vector-result) (into [] (concat content (second vector-result)))]
-            [(merge (first vector-result) content) (second vector-result)])
-          (keyword? item)
-          (if (= current item)
-            [(first vector-result)
-             (if (vector? content)
-                 content
-                 (if (empty? content) [] (vector content)))]
-            [(assoc (first vector-result) item content) (second vector-result)])
+    (cond (instance? Repetition item)
+          (builder/repetition builder vector-result current item content)
+          (or (vector? item) (keyword? item))
+          (builder/child builder vector-result current item content)
           :else vector-result)))
 
+(defn vector-result-content
+  "Returns the content of a parsed vector, given its `vector-result` and the
+  `current` rule."
+  [vector-result current]
+  (cond (second vector-result)
+        (if (empty? (first vector-result))
+          (hash-map current (finish-content (second vector-result)))
+          (cons (first vector-result) (second vector-result)))
+        :else
+        (first vector-result)))
+
+(defn ast-builder-with
+  "Returns a builder of the AST as documented, from maps and vectors, in which
+  the text of a terminal is the result of calling `text` with the input and
+  the offsets of its match. When a rule has a function in the `actions` map,
+  its content is replaced by the result of calling that function with it.
+  When it has a function in the `effects` map, a call of that function with
+  the value of the rule is added to the `log`, which is run by the parsing
+  machine once the rule can no longer be undone."
+  [text actions effects ^java.util.List log]
+  (reify builder/Builder
+    (begin-rule [_ rule]
+      (init-vector-result))
+    (terminal [_ rule input start end]
+      (text input start end))
+    (child [_ vector-result rule item content]
+      ;; Keywords are interned, so the recurring rule is found by identity.
+      (cond (vector? item) (add-nested vector-result content)
+            (identical? rule item) (add-recurring vector-result content)
+            (or actions effects)
+            (let [value (act actions item content)]
+              (when-let [effect (and effects (effects item))]
+                (.add log #(effect value)))
+              (add-nonterminal vector-result item value))
+            :else (add-nonterminal vector-result item content)))
+    (repetition [_ vector-result rule repetition content]
+      (add-repeated vector-result content (:kind repetition)))
+    (end-rule [_ vector-result rule]
+      (vector-result-content vector-result rule))))
+
+(defn- text-string
+  [^CharSequence input start end]
+  (str (.subSequence input start end)))
+
+(def ast-builder
+  "The builder of the AST from maps, vectors and strings, which is used unless
+  another builder is given."
+  (ast-builder-with text-string nil nil nil))
+
+(defn ast-builder-for
+  "Returns the builder of the AST for the `:slices`, `:actions` and `:effects`
+  options of `crustimoney.parse/parse`. The effects are only added to the
+  `log` when one is given."
+  ([options]
+     (ast-builder-for options nil))
+  ([{:keys [slices actions effects]} log]
+     (if (or slices actions (and log effects))
+       (ast-builder-with (if slices slice/slice text-string) actions
+                         (when log effects) log)
+       ast-builder)))
+
+(defn begin-vector-result
+  "Returns the vector-result to start parsing a vector with in the `state`,
+  which is nil when it is parsed as a terminal."
+  [{:keys [current as-terminal builder] :as state}]
+  (when-not as-terminal
+    (builder/begin-rule builder current)))
+
 (defn vector-result-to-succes
   "Convert a `vector-result` datastructure to a succes structure, using the
-  `succes` function."
-  [vector-result {:keys [current] :as state}]
-  (succes (if (second vector-result)
-            (if (empty? (first vector-result))
-              (hash-map current (second vector-result))
-              (into [] (cons (first vector-result) (second vector-result))))
-            (first vector-result))
+  `succes` function. A vector parsed as a terminal has no content."
+  [vector-result {:keys [current as-terminal builder] :as state}]
+  (succes (when-not as-terminal (builder/end-rule builder vector-result current))
           state))
 
 (defn parse-vector-item
@@ -86,7 +245,8 @@
   [item state]
   (let [parse-fn (cond (vector? item) parse-vector
                        (keyword? item) parse-nonterminal
-                       :else parse-terminal)]
+                       (instance? Repetition item) parse-repetition
+                       :else skip-terminal)]
     (parse-fn item state)))
 
 (defn parse-vector
@@ -97,22 +257,26 @@
   ;; initialise a result data structure.
   (loop [vect vect
          new-state state
-         vector-result (init-vector-result)]
+         vector-result (begin-vector-result state)]
     ;; Take the first item of the current vector and check whether we are
     ;; done parsing the current sequence of items.
-    (let [item (first vect)]
+    (let [[item more] (next-item vect)]
       (if (or (nil? item) (= item /))
         (vector-result-to-succes vector-result new-state)
         ;; Not done yet, so parse the current item and check whether it
         ;; was a succes. If so, continue to the next item in the vector.
         (let [parse-result (parse-vector-item item new-state)]
           (if-let [succes (:succes parse-result)]
-            (let [new-state (:new-state succes)
+            ;; The state of a parsed non-terminal describes the rule that was
+            ;; parsed, so restore the current rule of this vector.
+            (let [new-state (assoc (:new-state succes)
+                                   :current current
+                                   :as-terminal as-terminal)
                   new-vector-result (add-to-vector-result item
                                                           vector-result
                                                           (:content succes)
                                                           new-state)]
-              (recur (rest vect) new-state new-vector-result))
+              (recur more new-state new-vector-result))
             ;; The parsing of the item failed, check if there is a choice
             ;; operator further up in the vector. If not, then parsing the
             ;; vector has failed. Otherwise, reset the state (without losing the
@@ -122,22 +286,135 @@
                 parse-result
                 (recur (rest next-choice)
                        (merge state parse-result)
-                       (init-vector-result))))))))))
+                       (begin-vector-result state))))))))))
+
+
+;;; The examined text.
+
+;; An incremental parse reads its input through an examined text, which
+;; records the furthest offset that was read from it. The end of the input
+;; counts as the character after the last one, and is examined by a terminal
+;; that fails on it, or by a regular expression that hits it. So a parse that
+;; depends on where the text ends has examined all of it.
+
+(definterface IExamined
+  (^long examined [])
+  (^long restart [^long pos])
+  (examine [^long end]))
+
+(deftype ExaminedText [^CharSequence text ^:unsynchronized-mutable ^long furthest]
+  CharSequence
+  (length [_]
+    (.length text))
+  (charAt [_ i]
+    (when (>= i furthest) (set! furthest (inc i)))
+    (.charAt text i))
+  (subSequence [_ from to]
+    (.subSequence text from to))
+  (toString [_]
+    (.toString text))
+
+  IExamined
+  (examined [_]
+    furthest)
+  (restart [_ pos]
+    ;; Returns the furthest offset before restarting from `pos`.
+    (let [previous furthest]
+      (set! furthest pos)
+      previous))
+  (examine [_ end]
+    (when (> end furthest) (set! furthest end))
+    nil))
+
+(defn examined-text
+  "Returns an examined text reading the `text`."
+  [text]
+  (ExaminedText. text 0))
+
+
+(defn parse-repetition
+  "Parse the item of the `repetition` as often as it matches, with the
+  separator of the repetition (if any) before every next item. The content of
+  the succes holds the content of every iteration. Parsing fails when the
+  item does not match at least once for a `:one-or-more` repetition. Parsing
+  also stops after an iteration that did not advance, but not after the first
+  one when there is a separator, which may be followed by an item again."
+  [{:keys [expression kind separator] :as repetition}
+   {:keys [input memo current as-terminal] :as state}]
+  (if (and (instance? ExaminedText input) (:cells memo) (not= kind :optional))
+    (parse-examined-repetition repetition state)
+    (let [first-items [expression]
+          next-items (if separator [separator expression] first-items)
+          max-count (if (= kind :optional) 1 -1)]
+      (loop [state state contents []]
+        (let [n (count contents)
+              result (when-not (= n max-count)
+                       (parse-vector (if (zero? n) first-items next-items) state))]
+          (if-let [{:keys [content new-state]} (:succes result)]
+            (let [contents (conj contents (when-not as-terminal content))]
+              (if (and (= (:pos new-state) (:pos state)) (or (pos? n) (nil? separator)))
+                (succes contents new-state)
+                (recur new-state contents)))
+            (let [state (merge state result)]
+              (if (and (zero? n) (= kind :one-or-more))
+                {:errors (:errors state) :errors-pos (:errors-pos state)}
+                (succes contents state)))))))))
 
 
 ;;; The terminal parsing functions.
 
+(defn- match-string
+  "Returns the end offset of the string `s` when it is found in the `input` at
+  offset `pos`, or nil otherwise."
+  [^String s ^CharSequence input pos]
+  (let [pos (long pos)
+        length (.length s)
+        end (+ pos length)]
+    (when (<= end (.length input))
+      (loop [i 0]
+        (cond (= i length) end
+              (= (.charAt s i) (.charAt input (+ pos i))) (recur (inc i))
+              :else nil)))))
+
+(defn match-regex
+  "Returns the end offset of the match of the `matcher` when it matches the
+  `input` at offset `pos`, or nil otherwise. The matcher is reset on the input
+  and anchored at the offset by its region, so the pattern keeps its flags and
+  is never recompiled."
+  [^java.util.regex.Matcher matcher ^CharSequence input pos]
+  (.reset matcher input)
+  (.region matcher pos (.length input))
+  (when (.lookingAt matcher) (.end matcher)))
+
+(defn matcher-cache
+  "Returns a new cache for regular expression matchers, to be stored in the
+  state. A state is confined to a single thread during a parse, so the cached
+  matchers can be reused safely."
+  []
+  (java.util.IdentityHashMap.))
+
+(defn- regex-matcher
+  "Returns the cached matcher for the `pattern` in the `matchers` cache,
+  creating it when needed."
+  [^java.util.regex.Pattern pattern ^java.util.Map matchers]
+  (if matchers
+    (or (.get matchers pattern)
+        (let [matcher (.matcher pattern "")]
+          (.put matchers pattern matcher)
+          matcher))
+    (.matcher pattern "")))
+
 (defn parse-terminal-expression
-  "The function that tries to match the `expression` on (the start of) the
-  `remainder`. If it matches, it returns the matched text. Otherwise, it returns
-  nil."
-  [expression remainder]
-  (cond (char? expression) (when (= expression (first remainder)) (str expression))
-        (string? expression) (when (.startsWith remainder expression) expression)
-        (regex? expression)
-          (when-let [match (re-find (re-pattern (str "^" (.pattern expression)))
-                                                remainder)]
-            (if (vector? match) (first match) match))
+  "The function that tries to match the `expression` on the `input` (in the
+  `state`) at the current offset. If it matches, it returns the offset where the
+  match ends. Otherwise, it returns nil."
+  [expression {:keys [^CharSequence input pos matchers]}]
+  (cond (char? expression) (when (and (< pos (.length input))
+                                      (= (char expression) (.charAt input pos)))
+                             (inc pos))
+        (string? expression) (match-string expression input pos)
+        (regex? expression) (match-regex (regex-matcher expression matchers)
+                                         input pos)
         :else (throw (Exception. (i18n :invalid-parsing-expr
                                        (class expression))))))
 
@@ -148,38 +425,761 @@
         (string? expression) (i18n :string-terminal)
         (regex? expression) (i18n :regex-terminal)))
 
-(defn parse-terminal
-  "The actual terminal parsing function. It returns a succes or an error, as
-  defined by their respective functions."
-  [expression {:keys [remainder pos] :as state}]
-  (if-let [result (parse-terminal-expression expression remainder)]
-    (succes result (assoc state :remainder (subs remainder (count result))
-                                :pos (+ pos (count result))))
-    (error (i18n :expected-terminal
-                 (terminal-expression-name expression)
-                 expression)
-           state)))
+(defn expected-terminal
+  "Returns the error message for failing to parse the terminal `expression`."
+  [expression]
+  (i18n :expected-terminal (terminal-expression-name expression) expression))
+
+(defn- examine-end
+  "Marks the end of the examined `input` as examined, when the terminal
+  `expression` depended on it at offset `pos`."
+  [expression ^ExaminedText input pos matchers]
+  (let [length (.length input)]
+    (when (cond (char? expression) (>= pos length)
+                (string? expression) (> (+ pos (count expression)) length)
+                :else (.hitEnd ^java.util.regex.Matcher (regex-matcher expression matchers)))
+      (.examine input (inc length)))))
+
+(defn skip-terminal
+  "The actual terminal parsing function. It returns a succes without content or
+  an error, as defined by their respective functions. The text matched by a
+  terminal rule is taken from the input by the rule."
+  [expression {:keys [input pos matchers] :as state}]
+  (let [end (parse-terminal-expression expression state)]
+    (when (instance? ExaminedText input)
+      (examine-end expression input pos matchers))
+    (if end
+      (succes nil (assoc state :pos end))
+      (error expression state))))
+
+
+;;; Packrat memoization.
+
+(defn- rule-ids
+  "Returns a map from the name of every rule in the `rules` map to its id."
+  [rules]
+  (let [names (map #(keyword (.replaceAll (name %) "-$" "")) (keys rules))]
+    (zipmap names (range))))
+
+(defn memo-table
+  "Create a memoization table for parsing a text of length `length` with the
+  `rules` map. Every rule gets two slots in the table, one for parsing it
+  normally and one for parsing it as a terminal. A slot holds an array indexed
+  by input position, which is allocated on first use. The hits and misses are
+  counted in the `:stats` array."
+  [rules length]
+  {:ids (rule-ids rules)
+   :table (object-array (* 2 (count rules)))
+   :length length
+   :stats (long-array 2)})
+
+(defn memo-stats
+  "Returns a map with the `:hits` and `:misses` of the given memoization
+  table."
+  [{:keys [^longs stats]}]
+  {:hits (aget stats 0) :misses (aget stats 1)})
+
+(defn- memo-slot
+  "Returns the slot of the rule `id`, parsed as a terminal or not."
+  ^long [id as-terminal]
+  (+ (* 2 (long id)) (if as-terminal 1 0)))
+
+(defn- memo-column
+  "Returns the array holding the memoized results of the rule `id`, parsed as
+  a terminal or not."
+  [{:keys [^objects table length]} id as-terminal]
+  (let [slot (memo-slot id as-terminal)]
+    (or (aget table slot)
+        (aset table slot (object-array (inc length))))))
+
+
+;;; Incremental memoization.
+
+;; The table of an incremental parse holds a cell for every position of the
+;; text, which is an array with the slots of the rules, and one more slot with
+;; a map of the repetitions parsed at that position. The cells are kept in a
+;; gap buffer: an array with a gap at the last edit, behind which are the
+;; cells of the text after it. An edit moves the gap to its offset, which
+;; copies only the cells in between, drops the cells of the removed text and
+;; takes empty cells for the inserted text from the gap. The cells after the
+;; edit stay where they are in the array, and as an entry holds its end, the
+;; text it examined and its errors relative to its position, it stays valid.
+
+(definterface ICells
+  (cell [^long pos])
+  (putCell [^long pos cell])
+  (markFar [^long pos])
+  (unmarkFar [^long pos])
+  (farBefore [^long pos])
+  (moveGap [^long pos])
+  (replace [^long removed ^long inserted]))
+
+(defn- clear-cells
+  "Clears the `cells` array from index `from` up to `to`."
+  [^objects cells ^long from ^long to]
+  (loop [i from]
+    (when (< i to)
+      (aset cells i nil)
+      (recur (inc i)))))
+
+(defn- move-far
+  "Moves the indices in the `far` set from `from` up to `to` by `shift`."
+  [^java.util.TreeSet far ^long from ^long to ^long shift]
+  (let [moved (vec (.subSet far (Long/valueOf from) (Long/valueOf to)))]
+    (.removeAll far moved)
+    (doseq [i moved]
+      (.add far (Long/valueOf (+ (long i) shift))))))
+
+;; The far cells are kept by their index in the array, so only those of the
+;; cells that the gap moves over are moved in the set.
+
+(deftype Cells [^:unsynchronized-mutable ^objects cells
+                ^:unsynchronized-mutable ^long gap
+                ^:unsynchronized-mutable ^long gap-end
+                ^java.util.TreeSet far]
+  ICells
+  (cell [_ pos]
+    (aget cells (if (< pos gap) pos (+ pos (- gap-end gap)))))
+  (putCell [_ pos cell]
+    (aset cells (if (< pos gap) pos (+ pos (- gap-end gap))) cell))
+  (markFar [_ pos]
+    (.add far (Long/valueOf (if (< pos gap) pos (+ pos (- gap-end gap))))))
+  (unmarkFar [_ pos]
+    (.remove far (Long/valueOf (if (< pos gap) pos (+ pos (- gap-end gap))))))
+  (farBefore [_ pos]
+    ;; The positions before the gap are their indices.
+    (vec (.headSet far (Long/valueOf (min pos gap)))))
+  (moveGap [_ pos]
+    ;; Copies the cells between the gap and `pos` to the other side of it,
+    ;; clearing what was copied out of the new gap.
+    (let [size (- gap-end gap)]
+      (if (< pos gap)
+        (let [n (- gap pos)
+              to (- gap-end n)]
+          (System/arraycopy cells pos cells to n)
+          (clear-cells cells pos (min gap to))
+          (move-far far pos gap size)
+          (set! gap-end to))
+        (let [n (- pos gap)]
+          (System/arraycopy cells gap-end cells gap n)
+          (clear-cells cells (max pos gap-end) (+ gap-end n))
+          (move-far far gap-end (+ gap-end n) (- size))
+          (set! gap-end (+ gap-end n))))
+      (set! gap pos)
+      nil))
+  (replace [_ removed inserted]
+    ;; Drops the `removed` cells after the gap, and takes `inserted` empty
+    ;; cells from it, growing the array when the gap is too small.
+    (clear-cells cells gap-end (+ gap-end removed))
+    (.clear (.subSet far (Long/valueOf gap-end) (Long/valueOf (+ gap-end removed))))
+    (set! gap-end (+ gap-end removed))
+    (when (< (- gap-end gap) inserted)
+      (let [length (alength cells)
+            grown (object-array (+ length (max length inserted)))
+            after (- length gap-end)
+            shift (- (alength grown) length)]
+        (System/arraycopy cells 0 grown 0 gap)
+        (System/arraycopy cells gap-end grown (+ gap-end shift) after)
+        (move-far far gap-end length shift)
+        (set! gap-end (+ gap-end shift))
+        (set! cells grown)))
+    (set! gap (+ gap inserted))
+    nil))
+
+(def ^:private ^:const near-reach
+  "The number of characters that an entry of an incremental parse examines
+  at most, for its cell not to be kept as a far cell. An edit only checks
+  the cells this far before it, and the far cells before those."
+  256)
+
+(defn incremental-memo-table
+  "Create a memoization table for parsing a text of length `length`
+  incrementally with the `rules` map. It holds the `:cells` at the positions
+  of the text, with a gap after them, which also keep which cells are far:
+  those holding an entry that examined more than `near-reach` characters."
+  [rules length]
+  (let [size (inc (long length))]
+    {:ids (rule-ids rules)
+     :slots (* 2 (count rules))
+     :cells (Cells. (object-array (+ size 64)) size (+ size 64) (java.util.TreeSet.))
+     :length length
+     :stats (long-array 2)}))
+
+(defn- memo-cell
+  "Returns the cell at `pos` of the incremental memoization table `memo`,
+  which is created when there is none."
+  [{:keys [^Cells cells slots]} pos]
+  (or (.cell cells pos)
+      (let [cell (object-array (inc (long slots)))]
+        (.putCell cells pos cell)
+        cell)))
+
+(defn- add-far
+  "Marks the cell at `pos` of the incremental memoization table `memo` as
+  far when the `entry` examined more than `near-reach` characters."
+  [memo pos entry]
+  (when (> (long (:examined entry)) near-reach)
+    (.markFar ^Cells (:cells memo) pos)))
+
+(defn- memo-put
+  "Puts the `entry` in the `slot` of the cell at `pos` of the incremental
+  memoization table `memo`."
+  [memo pos slot entry]
+  (aset ^objects (memo-cell memo pos) (long slot) entry)
+  (add-far memo pos entry))
+
+(defn- memo-put-repetition
+  "Puts the `entry` of a repetition under its `key` in the last slot of the
+  cell at `pos` of the incremental memoization table `memo`."
+  [memo pos key entry]
+  (let [^objects cell (memo-cell memo pos)
+        slot (dec (alength cell))]
+    (aset cell slot (assoc (aget cell slot) key entry)))
+  (add-far memo pos entry))
+
+(defn- merge-errors
+  "Returns a map with the deepest `:errors` and `:errors-pos` of both the
+  errors `a` at `a-pos` and the errors `b` at `b-pos`."
+  [a a-pos b b-pos]
+  (cond (= a-pos b-pos) {:errors (when a (into a b)) :errors-pos a-pos}
+        (> a-pos b-pos) {:errors a :errors-pos a-pos}
+        :else {:errors (when a b) :errors-pos b-pos}))
+
+(defn- memo-replay
+  "Given a memoized `entry` and the current `state`, return the parse result.
+  The errors of the memoized parse have already been threaded through the
+  state, so they are taken from the current state. An entry of an incremental
+  parse holds its own errors, which are merged with those of the state, as
+  it may have been parsed for another version of the text."
+  [entry {:keys [input pos errors errors-pos] :as state}]
+  (if-let [examined (:examined entry)]
+    (let [errors (merge-errors errors errors-pos (:errors entry)
+                               (if-let [at (:errors-at entry)] (+ pos (long at)) -1))]
+      (.examine ^ExaminedText input (+ pos (long examined)))
+      (if-let [length (:length entry)]
+        (succes (:content entry) (merge (assoc state :pos (+ pos (long length))) errors))
+        errors))
+    (if (= entry ::failed)
+      {:errors errors :errors-pos errors-pos}
+      (succes (:content entry)
+              (assoc state :pos (+ pos (long (:length entry))))))))
+
+(defn- memo-entry
+  "Given a parse result at `pos`, return the entry to store in the
+  memoization table. Its end is stored as the length of the match, so the
+  entry stays valid when it is moved. When a `mark` is given, the entry also
+  holds the length of the text it examined and the errors found by the
+  parse, of which the position is also relative."
+  [result pos mark ^ExaminedText input]
+  (let [{:keys [content new-state]} (:succes result)
+        entry (if new-state
+                {:content content :length (- (:pos new-state) pos)}
+                ::failed)]
+    (if mark
+      (let [{:keys [errors errors-pos]} (or new-state result)]
+        (assoc (if new-state entry {})
+          :examined (- (.examined input) pos)
+          :errors errors
+          :errors-at (when-not (neg? errors-pos) (- errors-pos pos))))
+      entry)))
+
+(defn- memo-lookup
+  "Returns the memoized entry of the rule `nonterminal` at the position of the
+  `state`, counting the hit, or nil if there is none."
+  [nonterminal {:keys [memo pos as-terminal]}]
+  (when-let [id (and memo ((:ids memo) nonterminal))]
+    (when-let [entry (if-let [^Cells cells (:cells memo)]
+                       (when-let [^objects cell (.cell cells pos)]
+                         (aget cell (memo-slot id as-terminal)))
+                       (aget ^objects (memo-column memo id as-terminal) pos))]
+      (let [^longs stats (:stats memo)]
+        (aset stats 0 (inc (aget stats 0)))
+        entry))))
+
+(defn- examine-rule
+  "Returns a tuple with the mark of a rule that is parsed incrementally from
+  the `state`, and the state to parse it from, or nil if the input is not
+  examined. The mark saves the errors and the furthest examined offset so
+  far, which are reset for the rule, so that only what the rule examines
+  and the errors it finds are recorded in its entry."
+  [{:keys [input pos errors errors-pos] :as state}]
+  (when (instance? ExaminedText input)
+    [[errors errors-pos (.restart ^ExaminedText input pos)]
+     (assoc state :errors (when errors #{}) :errors-pos -1)]))
+
+(defn- resume-mark
+  "Returns the `result` of a rule parsed incrementally with its errors merged
+  with those saved in the `mark`, after adding the furthest examined offset
+  of the mark to the `input`."
+  [result [errors errors-pos examined] ^ExaminedText input]
+  (.examine input examined)
+  (if-let [{:keys [new-state]} (:succes result)]
+    (assoc result :succes
+           (assoc (:succes result) :new-state
+                  (merge new-state (merge-errors errors errors-pos
+                                                 (:errors new-state) (:errors-pos new-state)))))
+    (merge-errors errors errors-pos (:errors result) (:errors-pos result))))
+
+(defn- memo-store
+  "Stores the parse `result` of the rule `nonterminal` at the position of the
+  `state`, counting the miss, when the state holds a memoization table.
+  Returns the result, which is resumed with the `mark` of `examine-rule` if
+  it is given."
+  ([nonterminal state result]
+     (memo-store nonterminal state result nil))
+  ([nonterminal {:keys [memo pos as-terminal input]} result mark]
+     (when-let [id (and memo ((:ids memo) nonterminal))]
+       (let [^longs stats (:stats memo)
+             entry (memo-entry result pos mark input)]
+         (aset stats 1 (inc (aget stats 1)))
+         (if (:cells memo)
+           (memo-put memo pos (memo-slot id as-terminal) entry)
+           (aset ^objects (memo-column memo id as-terminal) pos entry))))
+     (if mark
+       (resume-mark result mark input)
+       result)))
+
+
+;;; Incremental repetitions.
+
+;; The iterations of a repetition would be reused one memoized rule at a time,
+;; so a long repetition would be walked entirely after every edit. Instead,
+;; the entry of a repetition at its start holds all its iterations, and the
+;; failure after them. An iteration is recorded like a rule: its content, its
+;; length, the text it examined and its errors, all relative to its start. An
+;; edit keeps the runs of iterations that did not examine it, and moves those
+;; after it. When the repetition is parsed again, a run is reused as a whole
+;; when an iteration starts where the run starts.
+
+(defn- first-index
+  "Returns the first index from `a` up to `b` for which `pred` holds, where
+  it holds for every index after one for which it holds, or `b` if there is
+  none."
+  [a b pred]
+  (loop [a (long a) b (long b)]
+    (if (< a b)
+      (let [m (quot (+ a b) 2)]
+        (if (pred m) (recur a m) (recur (inc m) b)))
+      a)))
+
+(defn- iteration-start
+  "Returns the start of the iteration `i` of a repetition entry, relative to
+  the start of the repetition, given the `ends` of its iterations."
+  ^long [^ints ends ^long i]
+  (if (zero? i) 0 (aget ends (dec i))))
+
+(defn- repetition-entry
+  "Returns the entry of a repetition with the `iterations`, and the
+  `failure` after them. Their ends and the furthest examined offset up to
+  every iteration are kept relative to the start of the repetition, to find
+  the iterations around an edit."
+  [iterations [failure-examined :as failure]]
+  (let [n (count iterations)
+        ends (int-array n)
+        reach (int-array n)
+        end (loop [i 0 end 0 furthest 0]
+              (if (< i n)
+                (let [[_ length examined] (nth iterations i)
+                      furthest (max furthest (+ end (long examined)))]
+                  (aset ends i (int (+ end (long length))))
+                  (aset reach i (int furthest))
+                  (recur (inc i) (aget ends i) furthest))
+                end))]
+    {:iterations iterations
+     :ends ends
+     :reach reach
+     :failure failure
+     :runs (if (pos? n) [[0 n 0]] [])
+     :failure-shift 0
+     :examined (max (if (pos? n) (aget reach (dec n)) 0) (+ (long end) (long failure-examined)))}))
+
+(defn- edit-repetition-entry
+  "Returns the repetition `entry` after an edit at `offset` relative to its
+  start, which `removed` characters there and changed the length by `delta`.
+  Of every run of iterations, those that did not examine the edit are kept,
+  where those after it are moved. Returns nil if nothing is kept."
+  [{:keys [^ints ends ^ints reach runs failure failure-shift] :as entry}
+   offset removed delta]
+  (let [offset (long offset)
+        edit-end (+ offset (long removed))
+        delta (long delta)
+        runs (vec (mapcat (fn [[a b shift]]
+                            (let [shift (long shift)
+                                  before (first-index a b #(> (+ (aget reach (int %)) shift) offset))
+                                  after (first-index a b #(>= (+ (iteration-start ends %) shift) edit-end))]
+                              (concat (when (< (long a) before) [[a before shift]])
+                                      (when (< after (long b)) [[after b (+ shift delta)]]))))
+                          runs))
+        failure-at (iteration-start ends (alength ends))
+        failure-shift (when failure-shift
+                        (let [shift (long failure-shift)]
+                          (cond (<= (+ failure-at (long (first failure)) shift) offset) shift
+                                (>= (+ failure-at shift) edit-end) (+ shift delta))))]
+    (when (or (seq runs) failure-shift)
+      (assoc entry
+        :runs runs
+        :failure-shift failure-shift
+        :examined (reduce max (concat (for [[_ b shift] runs]
+                                        (+ (aget reach (dec (long b))) (long shift)))
+                                      (when failure-shift
+                                        [(+ failure-at (long (first failure)) (long failure-shift))])))))))
+
+(defn- edit-cell
+  "Drops the entries in the `cell` at `pos` that examined the text at
+  `offset`, and edits the entries of its repetitions that did, for an edit
+  that `removed` characters there and changed the length by `delta`. Returns
+  true if the cell still holds an entry that examined more than
+  `near-reach` characters."
+  [^objects cell pos offset removed delta]
+  (let [pos (long pos)
+        offset (long offset)
+        last-slot (dec (alength cell))
+        overlaps #(> (+ pos (long (:examined %))) offset)
+        far (loop [slot 0 far false]
+              (if (< slot last-slot)
+                (let [entry (aget cell slot)]
+                  (cond (nil? entry) (recur (inc slot) far)
+                        (overlaps entry) (do (aset cell slot nil) (recur (inc slot) far))
+                        :else (recur (inc slot) (or far (> (long (:examined entry)) near-reach)))))
+                far))
+        repetitions (into {} (for [[key entry] (aget cell last-slot)
+                                   :let [entry (if (overlaps entry)
+                                                 (edit-repetition-entry entry (- offset pos)
+                                                                        removed delta)
+                                                 entry)]
+                                   :when entry]
+                               [key entry]))]
+    (aset cell last-slot (not-empty repetitions))
+    (boolean (or far (some #(> (long (:examined %)) near-reach) (vals repetitions))))))
+
+(defn edit-memo-table
+  "Edits the incremental memoization table `memo` for an edit of its text,
+  which replaced the `removed` characters at `offset` by `inserted`
+  characters, and returns it. The entries that examined the edited text are
+  dropped, which can only be in the `near-reach` cells before the offset or
+  in the far cells. The gap buffer is moved to the offset, after which the
+  cells of the removed text are dropped and those of the inserted text are
+  taken from the gap."
+  [{:keys [^Cells cells length] :as memo} offset removed inserted]
+  (let [offset (long offset)
+        removed (long removed)
+        delta (- (long inserted) removed)
+        near (max 0 (- offset near-reach))
+        edit (fn [pos]
+               (let [cell (.cell cells pos)]
+                 (when-not (and cell (edit-cell cell pos offset removed delta))
+                   (.unmarkFar cells pos))))]
+    (.moveGap cells offset)
+    (doseq [pos (.farBefore cells near)]
+      (edit pos))
+    (loop [pos near]
+      (when (< pos offset)
+        (edit pos)
+        (recur (inc pos))))
+    (.replace cells removed inserted)
+    (assoc memo :length (+ (long length) delta) :stats (long-array 2))))
+
+(defn- reuse-run
+  "Reuses the iterations `a` up to `b` of the repetition `entry`, which
+  start at the position of the `state`, by adding them to the transient
+  `iterations`. Returns a tuple with the state after them, with their errors
+  merged, and the iterations."
+  [{old :iterations} a b {:keys [^ExaminedText input pos errors errors-pos] :as state} iterations]
+  (loop [i (long a)
+         pos (long pos)
+         furthest pos
+         errors errors
+         errors-pos (long errors-pos)
+         iterations iterations]
+    (if (< i (long b))
+      (let [[_ length examined iteration-errors errors-at :as iteration] (nth old i)
+            at (if errors-at (+ pos (long errors-at)) -1)]
+        ;; Like merge-errors, without a map for every iteration.
+        (recur (inc i) (+ pos (long length)) (max furthest (+ pos (long examined)))
+               (cond (= at errors-pos) (when errors (into errors iteration-errors))
+                     (> at errors-pos) (when errors iteration-errors)
+                     :else errors)
+               (max at errors-pos) (conj! iterations iteration)))
+      (do (.examine input furthest)
+          [(assoc state :pos pos :errors errors :errors-pos errors-pos) iterations]))))
+
+(defn- parse-examined-repetition
+  "Like `parse-repetition`, but for an incremental parse. The iterations are
+  parsed like rules, so that they are recorded in the entry of the
+  repetition at its start, with the failure after them. When the repetition
+  was parsed before, its runs of iterations that an edit kept are reused
+  where an iteration starts at their start, and so is its failure."
+  [{:keys [expression kind separator] :as repetition}
+   {:keys [^ExaminedText input pos memo current as-terminal] :as state}]
+  (let [start (long pos)
+        key [current as-terminal repetition]
+        ^objects cell (memo-cell memo start)
+        old (get (aget cell (dec (alength cell))) key)
+        ^ints ends (:ends old)
+        old-count (if ends (alength ends) 0)
+        run-start #(+ (iteration-start ends (first %)) (long (nth % 2)))
+        failure-at (when-let [shift (:failure-shift old)]
+                     (+ (iteration-start ends old-count) (long shift)))
+        ;; Without a separator, the first iteration is parsed like the others.
+        same-items #(or (nil? separator) (= (zero? (long %1)) (zero? (long %2))))
+        first-items [expression]
+        next-items (if separator [separator expression] first-items)
+        ^longs stats (:stats memo)
+        finish (fn [state iterations failure]
+                 (let [iterations (persistent! iterations)]
+                   (memo-put-repetition memo start key (repetition-entry iterations failure))
+                   (if (and (empty? iterations) (= kind :one-or-more))
+                     {:errors (:errors state) :errors-pos (:errors-pos state)}
+                     (succes (mapv #(nth % 0) iterations) state))))]
+    (loop [state state runs (:runs old) iterations (transient [])]
+      (let [n (count iterations)
+            pos (long (:pos state))
+            rel (- pos start)
+            runs (drop-while #(< (long (run-start %)) rel) runs)
+            [a b :as run] (first runs)]
+        (cond (and run (= (run-start run) rel) (same-items n a))
+              (let [[state iterations] (reuse-run old a b state iterations)]
+                (aset stats 0 (inc (aget stats 0)))
+                (recur state (rest runs) iterations))
+              (and failure-at (= failure-at rel) (same-items n old-count))
+              (let [[examined errors errors-at :as failure] (:failure old)]
+                (aset stats 0 (inc (aget stats 0)))
+                (.examine input (+ pos (long examined)))
+                (finish (if errors-at
+                          (merge state (merge-errors (:errors state) (:errors-pos state)
+                                                     errors (+ pos (long errors-at))))
+                          state)
+                        iterations failure))
+              :else
+              (let [[mark iteration-state] (examine-rule state)
+                    result (parse-vector (if (zero? n) first-items next-items) iteration-state)
+                    examined (- (.examined input) pos)
+                    {:keys [errors errors-pos]} (or (:new-state (:succes result)) result)
+                    errors-at (when-not (neg? (long errors-pos)) (- (long errors-pos) pos))
+                    result (resume-mark result mark input)]
+                (if-let [{:keys [content new-state]} (:succes result)]
+                  (let [length (- (long (:pos new-state)) pos)
+                        iterations (conj! iterations [(when-not as-terminal content)
+                                                      length examined errors errors-at])]
+                    (if (and (zero? length) (or (pos? n) (nil? separator)))
+                      ;; An iteration that did not advance ends the repetition,
+                      ;; which is then not recorded.
+                      (succes (mapv #(nth % 0) (persistent! iterations)) new-state)
+                      (recur new-state runs iterations)))
+                  (do (aset stats 1 (inc (aget stats 1)))
+                      (finish (merge state result) iterations [examined errors errors-at])))))))))
+
+
+;;; Tail recursion.
+
+;; A rule that refers to itself as the last item of an alternative, like
+;; `[:item :list / :item]`, would be parsed with one nested call per item.
+;; Such a rule is parsed with a loop instead, keeping a stack of the levels of
+;; the recursion on the heap. When the recursion fails at some level, the
+;; next alternative is tried at the level above, as a recursive parse would.
+
+(defn tail-recursion
+  "Analyses the `rules` map for rules that refer to themselves as the last item
+  of an alternative. Returns a map from the name of every such rule to its
+  alternatives. An alternative is a map with its `:items`, and whether it ends
+  with a `:tail` call to the rule, which is then left out of the items."
+  [rules]
+  (into {} (for [nonterminal (set (map #(keyword (.replaceAll (name %) "-$" ""))
+                                       (keys rules)))
+                 :let [expression (or (rules nonterminal)
+                                      (rules (keyword (str (name nonterminal) \-))))]
+                 :when (vector? expression)
+                 :let [alternatives (map group-repetitions (vector-alternatives expression))]
+                 :when (some #(= nonterminal (last %)) alternatives)]
+             [nonterminal
+              (vec (for [alternative alternatives]
+                     (if (= nonterminal (last alternative))
+                       {:items (pop alternative) :tail true}
+                       {:items alternative :tail false})))])))
+
+(def ^:private tail-recursion-cache
+  (java.util.Collections/synchronizedMap (java.util.WeakHashMap.)))
+
+(defn cached-tail-recursion
+  "Like `tail-recursion`, but analyses a rules map only once for as long as it
+  is in use."
+  [rules]
+  (or (.get ^java.util.Map tail-recursion-cache rules)
+      (let [tails (tail-recursion rules)]
+        (.put ^java.util.Map tail-recursion-cache rules tails)
+        tails)))
+
+(defn- parse-sequence
+  "Parse the vector `items` in sequence. Returns a map with the
+  `:vector-result` and the `:state` after the items, or the error."
+  [items {:keys [current as-terminal] :as state}]
+  (loop [items items state state vector-result (begin-vector-result state)]
+    (if (empty? items)
+      {:vector-result vector-result :state state}
+      (let [item (first items)
+            result (parse-vector-item item state)]
+        (if-let [{:keys [content new-state]} (:succes result)]
+          (let [new-state (assoc new-state :current current :as-terminal as-terminal)]
+            (recur (rest items) new-state
+                   (add-to-vector-result item vector-result content new-state)))
+          result)))))
+
+(defn- unwind-tail-recursion
+  "Given the `result` of the deepest level of a tail recursive rule, combine it
+  with the levels on the stack of `frames`, as the recursive calls would have
+  returned. Every level below the top is memoized like a call, unless `stored`
+  is true for the deepest level."
+  [nonterminal frames result stored]
+  (loop [frames frames result result stored stored]
+    (if (empty? frames)
+      result
+      (let [[start _ vector-result call-state mark] (peek frames)
+            result (if stored result (memo-store nonterminal call-state result mark))
+            {:keys [content new-state]} (:succes result)
+            new-state (assoc new-state
+                        :current (:current start)
+                        :as-terminal (:as-terminal start))]
+        (recur (pop frames)
+               (vector-result-to-succes
+                 (add-to-vector-result nonterminal vector-result content new-state)
+                 new-state)
+               false)))))
+
+(defn- parse-tail-recursive
+  "Parse the rule `nonterminal`, of which the `alternatives` are analysed by
+  `tail-recursion`, without recursing on its tail calls. A frame on the stack
+  holds the state at the start of a level, the alternative that is tried, the
+  vector-result of its items and the state at the call to the next level,
+  followed by the mark of the next level when it is parsed incrementally."
+  [nonterminal alternatives state]
+  (let [n (count alternatives)]
+    (loop [frames [] start state i 0]
+      (if (= i n)
+        ;; All alternatives failed, so the level fails, and the next
+        ;; alternative is tried at the level above.
+        (let [failure {:errors (:errors start) :errors-pos (:errors-pos start)}]
+          (if (empty? frames)
+            failure
+            (let [[parent-start parent-i _ call-state mark] (peek frames)
+                  failure (memo-store nonterminal call-state failure mark)]
+              (recur (pop frames) (merge parent-start failure) (inc (long parent-i))))))
+        (let [{:keys [items tail]} (nth alternatives i)
+              result (parse-sequence items start)]
+          (if-let [new-state (:state result)]
+            (let [vector-result (:vector-result result)]
+              (cond (not tail)
+                    (unwind-tail-recursion nonterminal frames
+                                           (vector-result-to-succes vector-result new-state)
+                                           false)
+                    ;; A call that did not advance is left recursive, which
+                    ;; is parsed recursively, as it was written.
+                    (= (:pos new-state) (:pos start))
+                    (let [call-result (parse-nonterminal nonterminal new-state)]
+                      (if (:succes call-result)
+                        (unwind-tail-recursion nonterminal
+                                               (conj frames [start i vector-result new-state])
+                                               call-result true)
+                        (recur frames (merge start call-result) (inc i))))
+                    :else
+                    (if-let [entry (memo-lookup nonterminal new-state)]
+                      (let [call-result (memo-replay entry new-state)]
+                        (if (:succes call-result)
+                          (unwind-tail-recursion nonterminal
+                                                 (conj frames [start i vector-result new-state])
+                                                 call-result true)
+                          (recur frames (merge start call-result) (inc i))))
+                      (let [[mark level-state] (or (examine-rule new-state) [nil new-state])]
+                        (recur (conj frames [start i vector-result new-state mark])
+                               level-state 0)))))
+            (recur frames (merge start result) (inc i))))))))
 
 
 ;;; Namespace entry functions.
 
-(defn parse-nonterminal
+(defn- text-result
+  "Given the `result` of parsing the rule `nonterminal` as a terminal, starting
+  from the `state`, replace its content by the text that it matched."
+  [result nonterminal {:keys [^CharSequence input pos builder] :as state}]
+  (if-let [{:keys [new-state]} (:succes result)]
+    (succes (builder/terminal builder nonterminal input pos (:pos new-state))
+            new-state)
+    result))
+
+(defn- parse-rule-vector
+  "Parse the vector `expression` of the rule `nonterminal`, with a loop if the
+  rule is tail recursive according to the `:tails` in the `state`."
+  [nonterminal expression {:keys [tails] :as state}]
+  (if-let [alternatives (and tails (tails nonterminal))]
+    (parse-tail-recursive nonterminal alternatives state)
+    (parse-vector expression state)))
+
+(defn parse-rule
   "Parse the rule that in the rules map (in the `state`) as named by the keys
   `nonterminal`."
   [nonterminal {:keys [rules as-terminal] :as state}]
-  (let [expression (or (rules nonterminal)
-                       (rules (keyword (str (name nonterminal) \-))))
-        as-terminal (or as-terminal (rules (keyword (str (name nonterminal) \-))))]
-    (if (vector? expression)
-      (parse-vector expression (assoc state :current nonterminal
-                                            :as-terminal as-terminal))
-      (parse-terminal expression state))))
+  (let [terminal-name (keyword (str (name nonterminal) \-))
+        expression (or (rules nonterminal) (rules terminal-name))]
+    (cond as-terminal
+          (if (vector? expression)
+            (parse-rule-vector nonterminal expression (assoc state :current nonterminal))
+            (skip-terminal expression state))
+          (not (vector? expression))
+          (text-result (skip-terminal expression state) nonterminal state)
+          (contains? rules terminal-name)
+          (text-result (parse-rule-vector nonterminal expression
+                                          (assoc state :current nonterminal
+                                                       :as-terminal true))
+                       nonterminal state)
+          :else
+          (parse-rule-vector nonterminal expression (assoc state :current nonterminal)))))
+
+(defn parse-nonterminal
+  "Parse the rule named by `nonterminal`. If the `state` holds a memoization
+  table, a rule is parsed only once per input position."
+  [nonterminal state]
+  (if-let [entry (memo-lookup nonterminal state)]
+    (memo-replay entry state)
+    (if-let [[mark rule-state] (examine-rule state)]
+      (memo-store nonterminal state (parse-rule nonterminal rule-state) mark)
+      (memo-store nonterminal state (parse-rule nonterminal state)))))
+
+(defn line-index
+  "Returns the index of the lines in the `text` character sequence, which is an
+  int array holding the offset where every line starts."
+  [^CharSequence text]
+  (let [length (.length text)
+        newlines (loop [i 0 n 0]
+                   (if (< i length)
+                     (recur (inc i) (if (= \newline (.charAt text i)) (inc n) n))
+                     n))
+        index (int-array (inc newlines))]
+    (loop [i 0 line 1]
+      (when (< i length)
+        (if (= \newline (.charAt text i))
+          (do (aset index line (int (inc i)))
+              (recur (inc i) (inc line)))
+          (recur (inc i) line))))
+    index))
+
+(defn index-line-and-column
+  "Given the line `index` of a text and a position (starting from 0), return a
+  tuple with the line and column number of that position in the text (both
+  starting at 1). The line is found by a binary search in the index."
+  [^ints index pos]
+  (let [found (java.util.Arrays/binarySearch index (int pos))
+        line (if (neg? found) (- (inc found)) (inc found))]
+    [line (inc (- pos (aget index (dec line))))]))
 
 (defn line-and-column
-  "Given a `text` string and a position (starting from 0), return a tuple with
-  the line and column number of that position in the text (both starting at 1)."
-  [pos text]
-  (let [text (subs text 0 pos)
-        line (inc (count (filter #(= \newline %) text)))
-        column (inc (count (take-while #(not (= \newline %)) (reverse text))))]
-    [line column]))
\ No newline at end of file
+  "Given a `text` character sequence and a position (starting from 0), return a
+  tuple with the line and column number of that position in the text (both
+  starting at 1). Only the text up to the position is read, so for a single
+  position this is cheaper than building the `line-index` of the text."
+  [pos ^CharSequence text]
+  (let [pos (long pos)]
+    (loop [i 0 line 1 line-start 0]
+      (if (< i pos)
+        (if (= \newline (.charAt text i))
+          (recur (inc i) (inc line) (inc i))
+          (recur (inc i) line line-start))
+        [line (inc (- pos line-start))]))))
@@ -0,0 +1,341 @@
+(ns crustimoney.internal.flat
+  "This namespace contains the builder of the flat AST, which records the AST
+  in primitive arrays, and the read-only view on it. These are not intended
+  to be called directly by the user."
+  (:require [crustimoney.builder :as builder]))
+
+
+;;; The tree.
+
+;; The flat AST is built from cells in parallel arrays. Every cell has a kind
+;; and three ints, `a`, `b` and `next`, whose meaning depends on the kind:
+;;
+;;   text     the offsets `a` and `b` of the text in the input
+;;   entry    the rule id `a` and value `b` of a map entry, and the `next`
+;;            entry of the map
+;;   element  the value `b` of a list element, and the `next` element
+;;
+;; A value is the cell of a text, the first entry of a map or the first
+;; element of a list, or one of the negative values below. Cells are never
+;; changed after they have been added, so a value can be shared by several
+;; maps and lists, and the cells of a result that was discarded when the
+;; parser backtracked are simply never read. An entry may hide a later entry
+;; with the same rule id.
+
+(def ^:private ^:const text 0)
+(def ^:private ^:const entry 1)
+(def ^:private ^:const element 2)
+
+(def ^:private ^:const nil-value -1)
+(def ^:private ^:const empty-map -2)
+(def ^:private ^:const empty-list -3)
+
+(definterface ITree
+  (^long add [^long kind ^long a ^long b ^long next])
+  (^long kind [^long cell])
+  (^long a [^long cell])
+  (^long b [^long cell])
+  (^long next [^long cell])
+  (^long ruleId [rule])
+  (rule [^long id])
+  (^CharSequence input [])
+  (trim []))
+
+(deftype Tree [^CharSequence input
+               ^java.util.Map ids
+               ^java.util.List rules
+               ^:unsynchronized-mutable ^bytes kinds
+               ^:unsynchronized-mutable ^ints as
+               ^:unsynchronized-mutable ^ints bs
+               ^:unsynchronized-mutable ^ints nexts
+               ^:unsynchronized-mutable ^long size]
+  ITree
+  (add [this kind a b next]
+    (when (= size (alength kinds))
+      (let [length (int (* 2 size))]
+        (set! kinds (java.util.Arrays/copyOf kinds length))
+        (set! as (java.util.Arrays/copyOf as length))
+        (set! bs (java.util.Arrays/copyOf bs length))
+        (set! nexts (java.util.Arrays/copyOf nexts length))))
+    (aset kinds size (byte kind))
+    (aset as size (int a))
+    (aset bs size (int b))
+    (aset nexts size (int next))
+    (set! size (inc size))
+    (dec size))
+  (kind [_ cell] (long (aget kinds cell)))
+  (a [_ cell] (aget as cell))
+  (b [_ cell] (aget bs cell))
+  (next [_ cell] (aget nexts cell))
+  (ruleId [_ rule]
+    (if-let [id (.get ids rule)]
+      (long id)
+      (let [id (.size rules)]
+        (.put ids rule id)
+        (.add rules rule)
+        id)))
+  (rule [_ id] (.get rules id))
+  (input [_] input)
+  (trim [_]
+    (let [length (int size)]
+      (set! kinds (java.util.Arrays/copyOf kinds length))
+      (set! as (java.util.Arrays/copyOf as length))
+      (set! bs (java.util.Arrays/copyOf bs length))
+      (set! nexts (java.util.Arrays/copyOf nexts length))
+      nil)))
+
+(defn tree
+  "Returns a new, empty tree for the `input`."
+  [input]
+  (Tree. input (java.util.HashMap.) (java.util.ArrayList.)
+         (byte-array 64) (int-array 64) (int-array 64) (int-array 64) 0))
+
+
+;;; Building the tree.
+
+;; While a vector is parsed, its vector-result holds the map and the list
+;; values in a single long.
+
+(defn- result
+  "Returns the vector-result holding the map `m` and the list `l`."
+  [m l]
+  (bit-or (bit-shift-left (long m) 32) (bit-and (long l) 0xffffffff)))
+
+(defn- result-map
+  [r]
+  (bit-shift-right (long r) 32))
+
+(defn- result-list
+  [r]
+  (long (unchecked-int (long r))))
+
+(defn- kind?
+  "Returns true if the `value` is a cell of the given `kind`."
+  [^ITree tree kind value]
+  (let [value (long value)]
+    (and (>= value 0) (= kind (.kind tree value)))))
+
+(defn- list-value?
+  [tree value]
+  (or (= empty-list value) (kind? tree element value)))
+
+(defn- empty-value?
+  "Returns true if the `value` is nil, an empty map or list, or an empty text."
+  [^ITree tree value]
+  (let [value (long value)]
+    (or (neg? value)
+        (and (= text (.kind tree value))
+             (= (.a tree value) (.b tree value))))))
+
+(defn- chain
+  "Returns the first cell of the map or list `value`, or -1 if it is empty."
+  [value]
+  (let [value (long value)]
+    (if (neg? value) -1 value)))
+
+(defn- prepend
+  "Returns a copy of the chain of entries or elements starting at `cell`, in
+  front of the chain starting at `tail`."
+  [^ITree tree cell tail]
+  (let [cells (java.util.ArrayList.)]
+    (loop [cell (long cell)]
+      (when-not (neg? cell)
+        (.add cells cell)
+        (recur (.next tree cell))))
+    (loop [i (dec (.size cells)) tail (long tail)]
+      (if (neg? i)
+        tail
+        (let [cell (long (.get cells i))]
+          (recur (dec i) (.add tree (.kind tree cell) (.a tree cell) (.b tree cell) tail)))))))
+
+(defn- add-nested
+  "Like `crustimoney.internal.core/add-nested`, for the vector-result `r`."
+  [^ITree tree r content]
+  (let [m (result-map r)
+        l (result-list r)
+        content (long content)]
+    (if (list-value? tree content)
+      (result m (if (empty-value? tree l)
+                  content
+                  (prepend tree (chain content) (chain l))))
+      (result (cond (= nil-value content) m
+                    (= nil-value m) content
+                    :else (let [merged (prepend tree (chain content) (chain m))]
+                            (if (neg? merged) empty-map merged)))
+              l))))
+
+(defn- add-recurring
+  "Like `crustimoney.internal.core/add-recurring`, for the vector-result `r`."
+  [^ITree tree r content]
+  (let [content (long content)]
+    (result (result-map r)
+            (cond (list-value? tree content) content
+                  (empty-value? tree content) empty-list
+                  :else (.add tree element 0 content -1)))))
+
+(defn- add-nonterminal
+  "Like `crustimoney.internal.core/add-nonterminal`, for the vector-result
+  `r`."
+  [^ITree tree r item content]
+  (result (.add tree entry (.ruleId tree item) content (chain (result-map r)))
+          (result-list r)))
+
+(defn- add-repeated
+  "Like `crustimoney.internal.core/add-repeated`, for the vector-result `r`."
+  [^ITree tree r contents kind]
+  (if (empty? contents)
+    r
+    (let [r (add-nested tree r (first contents))
+          more (java.util.ArrayList.)]
+      (doseq [content (rest contents)]
+        (let [content (long content)]
+          (cond (list-value? tree content)
+                (loop [cell (chain content)]
+                  (when-not (neg? cell)
+                    (.add more (.b tree cell))
+                    (recur (.next tree cell))))
+                (empty-value? tree content) nil
+                :else (.add more content))))
+      (if (or (pos? (.size more)) (= kind :zero-or-more))
+        (let [tail (loop [i (dec (.size more)) tail -1]
+                     (if (neg? i)
+                       tail
+                       (recur (dec i) (.add tree element 0 (long (.get more i)) tail))))
+              l (prepend tree (chain (result-list r)) tail)]
+          (result (result-map r) (if (neg? l) empty-list l)))
+        r))))
+
+(defn- result-content
+  "Like `crustimoney.internal.core/vector-result-content`, for the
+  vector-result `r`."
+  [^ITree tree r current]
+  (let [m (result-map r)
+        l (result-list r)]
+    (cond (= nil-value l) m
+          (empty-value? tree m) (.add tree entry (.ruleId tree current) l -1)
+          :else (.add tree element 0 m (chain l)))))
+
+(defn tree-builder
+  "Returns a builder adding the AST to the `tree`. The contents it builds are
+  the values in the tree."
+  [^ITree tree]
+  (reify builder/Builder
+    (begin-rule [_ rule]
+      (result nil-value nil-value))
+    (terminal [_ rule input start end]
+      (.add tree text start end -1))
+    (child [_ r rule item content]
+      (cond (vector? item) (add-nested tree r content)
+            (identical? rule item) (add-recurring tree r content)
+            :else (add-nonterminal tree r item content)))
+    (repetition [_ r rule repetition contents]
+      (add-repeated tree r contents (:kind repetition)))
+    (end-rule [_ r rule]
+      (result-content tree r rule))))
+
+
+;;; The view.
+
+;; The view on a flat AST can be navigated like the AST itself. A map is an
+;; ILookup keyed by rule, and a list is a sequential, indexed collection. A
+;; text is only taken from the input when it is read.
+
+(declare value)
+
+(defn- entries
+  "Returns the entries of the map starting at `cell` as [rule value] tuples,
+  without the hidden ones."
+  [^ITree tree cell]
+  (loop [cell (long cell) seen #{} entries []]
+    (if (neg? cell)
+      entries
+      (let [id (.a tree cell)]
+        (recur (.next tree cell)
+               (conj seen id)
+               (if (seen id) entries (conj entries [(.rule tree id) (.b tree cell)])))))))
+
+(defn- element-seq
+  "Returns a lazy seq of the values of the elements starting at `cell`."
+  [^ITree tree cell]
+  (lazy-seq
+    (let [cell (long cell)]
+      (when-not (neg? cell)
+        (cons (value tree (.b tree cell)) (element-seq tree (.next tree cell)))))))
+
+(defn- element-at
+  "Returns the element at index `i` in the list starting at `cell`, or -1."
+  [^ITree tree cell i]
+  (loop [cell (long cell) i (long i)]
+    (cond (or (neg? cell) (neg? i)) -1
+          (zero? i) cell
+          :else (recur (.next tree cell) (dec i)))))
+
+(deftype FlatMap [^ITree tree ^long cell]
+  clojure.lang.ILookup
+  (valAt [this key]
+    (.valAt this key nil))
+  (valAt [_ key not-found]
+    (loop [entry cell]
+      (cond (neg? entry) not-found
+            (= key (.rule tree (.a tree entry))) (value tree (.b tree entry))
+            :else (recur (.next tree entry)))))
+  clojure.lang.Seqable
+  (seq [_]
+    (seq (for [[rule value-cell] (entries tree cell)]
+           (clojure.lang.MapEntry. rule (value tree value-cell)))))
+  clojure.lang.Counted
+  (count [_]
+    (count (entries tree cell)))
+  Object
+  (toString [this]
+    (str (into {} (seq this)))))
+
+(deftype FlatList [^ITree tree ^long cell]
+  clojure.lang.Sequential
+  clojure.lang.Seqable
+  (seq [_]
+    (seq (element-seq tree cell)))
+  clojure.lang.Counted
+  (count [_]
+    (loop [element cell n 0]
+      (if (neg? element) n (recur (.next tree element) (inc n)))))
+  clojure.lang.Indexed
+  (nth [_ i]
+    (let [element (element-at tree cell i)]
+      (if (neg? element)
+        (throw (IndexOutOfBoundsException.))
+        (value tree (.b tree element)))))
+  (nth [_ i not-found]
+    (let [element (element-at tree cell i)]
+      (if (neg? element) not-found (value tree (.b tree element)))))
+  clojure.lang.ILookup
+  (valAt [this key]
+    (.valAt this key nil))
+  (valAt [this key not-found]
+    (if (integer? key)
+      (.nth this (int key) not-found)
+      not-found))
+  Object
+  (toString [this]
+    (str (vec (seq this)))))
+
+(defn value
+  "Returns the view on the `value` in the `tree`: nil, a String, a FlatMap or
+  a FlatList."
+  [^ITree tree value]
+  (let [value (long value)]
+    (cond (= nil-value value) nil
+          (= empty-map value) (FlatMap. tree -1)
+          (= empty-list value) (FlatList. tree -1)
+          :else (let [kind (.kind tree value)]
+                  (cond (= kind text)
+                        (str (.subSequence (.input tree) (.a tree value) (.b tree value)))
+                        (= kind entry) (FlatMap. tree value)
+                        :else (FlatList. tree value))))))
+
+(defn root
+  "Returns the view on the `content` of a parse, after trimming the arrays of
+  the `tree` to the cells it holds."
+  [^ITree tree content]
+  (.trim tree)
+  (value tree content))
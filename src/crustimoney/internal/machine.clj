@@ -0,0 +1,682 @@
+(ns crustimoney.internal.machine
+  "This namespace contains the parsing machine. A rules map is compiled to a
+  program of simple instructions, which is run by a single loop with an
+  explicit backtrack stack, like the parsing machine of LPeg. These are not
+  intended to be called directly by the user."
+  (:require [crustimoney.internal.core :as core]
+            [crustimoney.internal.compiler :as compiler]
+            [crustimoney.internal.stream :as stream]
+            [crustimoney.builder :as builder])
+  (:use [crustimoney.internal.utils])
+  (:import [crustimoney.internal.core Repetition]
+           [crustimoney.internal.stream IStream]))
+
+
+;;; The instructions.
+
+;; Every instruction takes two ints in the code of a program: the opcode and
+;; its argument. The argument is a character, a jump address, a rule, a regular
+;; expression or an index in the constants of the program.
+(def ^:private opcodes
+  {:halt 0      ; stop, the parse succeeded
+   :fail 1      ; backtrack to the last choice
+   :char 2      ; match the character in the argument
+   :string 3    ; match the string constant
+   :regex 4     ; match the regular expression
+   :charset 5   ; match a character in the set of the regular expression
+   :choice 6    ; push a choice, to continue at the address on failure
+   :commit 7    ; pop the last choice and jump to the address
+   :call 8      ; call the rule
+   :return 9    ; return from the rule that was called
+   :begin 10    ; push a new vector-result for the rule constant
+   :combine 11  ; add the value to the vector-result, using the constant
+   :end 12      ; pop the vector-result, its content for the rule constant
+                ; becomes the value
+   :mark 13     ; push the current position
+   :text 14     ; pop the marked position, the content of the text since for
+                ; the rule constant becomes the value
+   :loop 15     ; update the last choice and jump back if there was progress,
+                ; otherwise pop the choice
+   :jump 16     ; jump to the address
+   :collect 17  ; push an empty vector for the contents of a repetition
+   :append 18   ; add the value to the contents of the repetition
+   :collected 19}) ; pop the contents, which become the value; fail when
+                   ; there are none and the argument is 1
+
+(defmacro ^:private op-case
+  "Like `case`, but on the opcode keywords."
+  [op & clauses]
+  `(case (int ~op)
+     ~@(mapcat (fn [[k expr]] [(opcodes k) expr]) (partition 2 clauses))))
+
+;; The address of the :fail instruction, which every program starts with.
+(def ^:private ^:const fail-address 2)
+
+
+;;; The compiler.
+
+;; A program holds the `code`, the `constants`, the address, the kind and the
+;; name of every rule in `entries`, `kinds` and `names`, the regular
+;; expressions in `patterns` with their character sets in `charsets`, and the
+;; addresses to start a parse from in `starts`.
+(defrecord Program [code constants entries kinds names patterns charsets starts recognizers])
+
+(defn- emit!
+  "Adds an instruction to the code of the `compiler`, and returns its address."
+  [{:keys [^java.util.List code]} op arg]
+  (.add code (int (opcodes op)))
+  (.add code (int arg))
+  (- (.size code) 2))
+
+(defn- patch!
+  "Sets the argument of the instruction at `address` to `arg`."
+  [{:keys [^java.util.List code]} address arg]
+  (.set code (inc address) (int arg)))
+
+(defn- here
+  "Returns the address of the next instruction."
+  [{:keys [^java.util.List code]}]
+  (.size code))
+
+(defn- add!
+  "Adds `x` to the list under `key` in the `compiler`, and returns its index."
+  [compiler key x]
+  (let [^java.util.List xs (compiler key)]
+    (.add xs x)
+    (dec (.size xs))))
+
+(defn- charset
+  "Returns the set of ASCII characters matched by the regular expression
+  `pattern` as a bitmap, when the pattern is a single character class, or nil
+  otherwise."
+  [^java.util.regex.Pattern pattern]
+  (when (and (zero? (.flags pattern))
+             (re-matches #"\[\^?(?:\\[^Q]|[^\\\[\]&])+\]" (.pattern pattern)))
+    (let [bits (long-array 2)]
+      (doseq [c (range 128)
+              :when (.matches (.matcher pattern (str (char c))))]
+        (aset bits (bit-shift-right c 6)
+              (bit-or (aget bits (bit-shift-right c 6))
+                      (bit-shift-left 1 (bit-and c 63)))))
+      bits)))
+
+(defn- rule-index
+  "Returns the index of the rule `nonterminal`, parsed as a terminal if
+  `as-terminal` is true. A new rule is queued to have its body compiled."
+  [{:keys [indices ^java.util.List queue] :as compiler} nonterminal as-terminal]
+  (or (@indices [nonterminal as-terminal])
+      (let [index (count @indices)]
+        (swap! indices assoc [nonterminal as-terminal] index)
+        (.add queue [nonterminal as-terminal])
+        index)))
+
+(defn- compile-terminal
+  "Emits the instruction matching the terminal `expression`."
+  [compiler expression]
+  (cond (char? expression) (emit! compiler :char (int (char expression)))
+        (string? expression) (emit! compiler :string (add! compiler :constants expression))
+        (regex? expression) (let [id (add! compiler :patterns expression)
+                                  bits (charset expression)]
+                              (add! compiler :charsets bits)
+                              (emit! compiler (if bits :charset :regex) id))
+        :else (compiler/invalid-expression expression)))
+
+(declare compile-expression)
+
+(defn- compile-vector
+  "Emits the instructions for the vector expression `vect`, as part of the rule
+  `current`, or parsed as a terminal if `current` is nil. Every alternative
+  but the last is guarded by a choice, and commits to the end when it
+  succeeds."
+  [compiler vect current]
+  (let [alternatives (core/vector-alternatives vect)
+        last-alternative (dec (count alternatives))
+        commits (for [[i alternative] (map-indexed vector
+                                                   (map core/group-repetitions alternatives))]
+                  (let [choice (when (< i last-alternative)
+                                 (emit! compiler :choice 0))]
+                    (when current
+                      (emit! compiler :begin (add! compiler :constants current)))
+                    (doseq [item alternative]
+                      (compile-expression compiler item current)
+                      (when-let [combiner (and current (compiler/combiner item current))]
+                        (emit! compiler :combine (add! compiler :constants combiner))))
+                    (when current
+                      (emit! compiler :end (add! compiler :constants current)))
+                    (when choice
+                      (let [commit (emit! compiler :commit 0)]
+                        (patch! compiler choice (here compiler))
+                        commit))))]
+    (doseq [commit (doall commits) :when commit]
+      (patch! compiler commit (here compiler)))))
+
+(defn- compile-repetition
+  "Emits the loop for the Repetition `repetition`. Within the rule `current`,
+  the contents of the iterations are collected. An iteration is guarded by a
+  choice, which the :loop instruction moves forward after every iteration that
+  advanced. Without content, or with a separator, a `:one-or-more` repetition
+  starts with an iteration outside of the loop, so the loop is not ended by a
+  first item that did not advance."
+  [compiler {:keys [expression kind separator]} current]
+  (let [first-items [expression]
+        next-items (if separator [separator expression] first-items)
+        first-outside (and (= kind :one-or-more) (or (nil? current) separator))]
+    (when current (emit! compiler :collect 0))
+    (when first-outside
+      (compile-vector compiler first-items current)
+      (when current (emit! compiler :append 0)))
+    (let [choice (emit! compiler :choice 0)]
+      (if (= kind :optional)
+        (do (compile-vector compiler first-items current)
+            (when current (emit! compiler :append 0))
+            (patch! compiler (emit! compiler :commit 0) (here compiler)))
+        ;; Without a separator, the next items are the first items.
+        (let [loop-start (here compiler)]
+          (compile-vector compiler next-items current)
+          (when current (emit! compiler :append 0))
+          (emit! compiler :loop loop-start)))
+      (patch! compiler choice (here compiler)))
+    (when current
+      (emit! compiler :collected (if (= kind :one-or-more) 1 0)))))
+
+(defn- compile-expression
+  "Emits the instructions for a parsing `expression` that is an item of a
+  vector, which is part of the rule `current`, or is parsed as a terminal if
+  `current` is nil."
+  [compiler expression current]
+  (cond (vector? expression) (compile-vector compiler expression current)
+        (keyword? expression) (emit! compiler :call (rule-index compiler expression (nil? current)))
+        (instance? Repetition expression) (compile-repetition compiler expression current)
+        :else (compile-terminal compiler expression)))
+
+(defn- compile-rule
+  "Emits the body of the rule `nonterminal`, parsed as a terminal if
+  `as-terminal` is true. Returns the kind of the rule."
+  [{:keys [rules] :as compiler} nonterminal as-terminal]
+  (let [{:keys [expression kind current]} (compiler/rule-info rules nonterminal as-terminal)]
+    (when (= kind :text) (emit! compiler :mark 0))
+    (if (vector? expression)
+      (compile-vector compiler expression current)
+      (compile-terminal compiler expression))
+    (when (= kind :text) (emit! compiler :text (add! compiler :constants nonterminal)))
+    (emit! compiler :return 0)
+    kind))
+
+(defn compile-rules
+  "Compiles the `rules` map to a Program. For every rule that can be started
+  from, the program has a call to the rule followed by a halt, and a call to
+  the rule parsed as a terminal, for recognizing."
+  [rules]
+  (let [compiler {:rules rules
+                  :code (java.util.ArrayList.)
+                  :constants (java.util.ArrayList.)
+                  :patterns (java.util.ArrayList.)
+                  :charsets (java.util.ArrayList.)
+                  :indices (atom {})
+                  :queue (java.util.ArrayList.)}
+        _ (emit! compiler :halt 0)
+        _ (emit! compiler :fail 0)
+        start-addresses (fn [as-terminal]
+                          (into {} (for [rule (compiler/rule-names rules)]
+                                     (let [index (rule-index compiler rule as-terminal)
+                                           address (emit! compiler :call index)]
+                                       (emit! compiler :halt 0)
+                                       [rule address]))))
+        starts (start-addresses false)
+        recognizers (start-addresses true)
+        ^java.util.List queue (:queue compiler)
+        entries (java.util.ArrayList.)
+        kinds (java.util.ArrayList.)]
+    ;; Compiling a rule may queue the rules it refers to.
+    (loop [i 0]
+      (when (< i (.size queue))
+        (let [[nonterminal as-terminal] (.get queue i)]
+          (.add entries (here compiler))
+          (.add kinds (compile-rule compiler nonterminal as-terminal))
+          (recur (inc i)))))
+    (Program. (int-array (:code compiler))
+              (object-array (:constants compiler))
+              (int-array entries)
+              (object-array kinds)
+              (object-array (map first queue))
+              (object-array (:patterns compiler))
+              (object-array (:charsets compiler))
+              starts
+              recognizers)))
+
+
+;;; The machine.
+
+;; The stack of the machine holds choices and calls, each taking four longs: a
+;; tag, the position, the height of the value stack and an address. The tag
+;; of a choice is 0, a call is 1, and a memoized call is 2, with the rule of a
+;; call added in the higher bits. The value stack holds the vector-results and
+;; marked positions of the rules that are being parsed.
+;;
+;; When the machine has an event `handler`, it reports the rules it parses as
+;; events instead of building their contents. The events are kept in the
+;; `log` while there are choices on the stack, as calls of the handler, and
+;; the tag of a choice then holds the size of the log in its higher bits, so
+;; the events of an abandoned alternative are dropped on backtracking. Once
+;; no choice is left, the events can no longer be undone and the calls in the
+;; log are run. The builder may add calls to the log as well, for the effects
+;; of the rules it builds.
+;;
+;; When the input is a `stream`, its length is the part that has been read so
+;; far, and more is read when a terminal reaches it. A stream may throw the
+;; `crustimoney.internal.stream/suspension` when it has no more text yet,
+;; after which the machine can be resumed. At the same moments the
+;; events are passed on, the stream is told the position of the oldest choice
+;; or terminal rule on the stack, before which the text is no longer needed.
+;; The stream is also told the furthest position where the parse failed, as
+;; the error may be reported there after its text has been released.
+(definterface IMachine
+  (^long run [^long pc ^long pos])
+  (push [^long tag ^long pos ^long address])
+  (pushValue [value])
+  (popValue [])
+  (^long backtrack [])
+  (fail [^long pos expression])
+  (event [event rule ^long start end])
+  (flush [])
+  (^boolean more [^long pc ^long pos ^long index])
+  (^long resume [])
+  (release [^long pos])
+  (memoColumn [^long rule])
+  (memoStore [^long rule ^long pos entry])
+  (^long matchRegex [^long id ^long pc ^long pos])
+  (value [])
+  (^long errorsPos [])
+  (errors []))
+
+(deftype Machine [^ints code
+                  ^objects constants
+                  ^ints entries
+                  ^objects kinds
+                  ^objects patterns
+                  ^objects charsets
+                  ^CharSequence input
+                  ^objects matchers
+                  ^objects memo
+                  ^longs stats
+                  builder
+                  ^objects names
+                  ^IStream stream
+                  ^clojure.lang.IFn handler
+                  ^java.util.List log
+                  ^:unsynchronized-mutable ^long choices
+                  ^java.util.Set errors
+                  ^:unsynchronized-mutable ^long errors-pos
+                  ^:unsynchronized-mutable value
+                  ^:unsynchronized-mutable ^longs stack
+                  ^:unsynchronized-mutable ^long top
+                  ^:unsynchronized-mutable ^objects values
+                  ^:unsynchronized-mutable ^long values-top
+                  ^:unsynchronized-mutable ^long resume-pc
+                  ^:unsynchronized-mutable ^long resume-pos]
+  IMachine
+  (run [this pc pos]
+    (let [length (.length input)]
+      (loop [pc pc pos pos]
+        (let [arg (aget code (inc pc))]
+          (op-case (aget code pc)
+            :halt
+            (do (when log (.flush this))
+                pos)
+
+            :fail
+            (let [pc (.backtrack this)]
+              (if (neg? pc)
+                -1
+                (recur pc (aget stack (inc (* 4 top))))))
+
+            :char
+            (if (and (or (< pos length) (.more this pc pos pos)) (== arg (int (.charAt input pos))))
+              (recur (+ pc 2) (inc pos))
+              (do (.fail this pos (char arg))
+                  (recur fail-address pos)))
+
+            :string
+            (let [^String s (aget constants arg)
+                  end (+ pos (.length s))]
+              (if (and (or (<= end length) (.more this pc pos (dec end)))
+                       (loop [i 0]
+                         (cond (= i (.length s)) true
+                               (= (.charAt s i) (.charAt input (+ pos i))) (recur (inc i))
+                               :else false)))
+                (recur (+ pc 2) end)
+                (do (.fail this pos s)
+                    (recur fail-address pos))))
+
+            :regex
+            (let [end (.matchRegex this arg pc pos)]
+              (if (neg? end)
+                (recur fail-address pos)
+                (recur (+ pc 2) end)))
+
+            :charset
+            (let [c (if (or (< pos length) (.more this pc pos pos)) (int (.charAt input pos)) -1)]
+              (if (and (<= 0 c) (< c 128))
+                (let [^longs bits (aget charsets arg)]
+                  (if (zero? (bit-and (aget bits (bit-shift-right c 6))
+                                      (bit-shift-left 1 (bit-and c 63))))
+                    (do (.fail this pos (aget patterns arg))
+                        (recur fail-address pos))
+                    (recur (+ pc 2) (inc pos))))
+                ;; Other characters are left to the regular expression.
+                (let [end (.matchRegex this arg pc pos)]
+                  (if (neg? end)
+                    (recur fail-address pos)
+                    (recur (+ pc 2) end)))))
+
+            :choice
+            (do (.push this (if log (bit-shift-left (.size log) 2) 0) pos arg)
+                (set! choices (inc choices))
+                (recur (+ pc 2) pos))
+
+            :commit
+            (do (set! top (dec top))
+                (set! choices (dec choices))
+                (when (zero? choices)
+                  (when log (.flush this))
+                  (when stream (.release this pos)))
+                (recur arg pos))
+
+            :call
+            (if-let [column (.memoColumn this arg)]
+              (let [entry (aget ^objects column pos)]
+                (if (nil? entry)
+                  (do (.push this (bit-or 2 (bit-shift-left arg 2)) pos (+ pc 2))
+                      (recur (aget entries arg) pos))
+                  (do (aset stats 0 (inc (aget stats 0)))
+                      (if (= entry ::failed)
+                        (recur fail-address pos)
+                        (do (set! value (second entry))
+                            (recur (+ pc 2) (long (first entry))))))))
+              (do (when (and handler (= :value (aget kinds arg)))
+                    (.event this :start (aget names arg) pos nil))
+                  (.push this (bit-or 1 (bit-shift-left arg 2)) pos (+ pc 2))
+                  (recur (aget entries arg) pos)))
+
+            :return
+            (let [i (* 4 (dec top))
+                  tag (aget stack i)]
+              (set! top (dec top))
+              (when (= 2 (bit-and tag 3))
+                (let [rule (bit-shift-right tag 2)]
+                  (.memoStore this rule (aget stack (inc i))
+                              [pos (when-not (= :none (aget kinds rule)) value)])))
+              (when handler
+                (let [rule (bit-shift-right tag 2)
+                      kind (aget kinds rule)]
+                  (when-not (= :none kind)
+                    (.event this (if (= :value kind) :end :terminal)
+                            (aget names rule) (aget stack (inc i)) pos))))
+              (recur (aget stack (+ i 3)) pos))
+
+            :loop
+            (let [i (* 4 (dec top))]
+              (if (> pos (aget stack (inc i)))
+                (do (aset stack (inc i) pos)
+                    (when log
+                      ;; The iterations of a loop are not undone, so when its
+                      ;; choice is the only one, the calls in the log are run.
+                      (when (= 1 choices) (.flush this))
+                      (aset stack i (bit-shift-left (.size log) 2)))
+                    (when stream (.release this pos))
+                    (recur arg pos))
+                (do (set! top (dec top))
+                    (set! choices (dec choices))
+                    (when (zero? choices)
+                      (when log (.flush this))
+                      (when stream (.release this pos)))
+                    (recur (+ pc 2) pos))))
+
+            :jump
+            (recur arg pos)
+
+            ;; With a handler, only the number of iterations is counted.
+            :collect
+            (do (.pushValue this (if handler 0 []))
+                (recur (+ pc 2) pos))
+
+            :append
+            (let [i (dec values-top)
+                  contents (aget values i)]
+              (aset values i (if handler (inc (long contents)) (conj contents value)))
+              (recur (+ pc 2) pos))
+
+            :collected
+            (let [contents (.popValue this)]
+              (if (and (== arg 1) (if handler (zero? (long contents)) (empty? contents)))
+                (recur fail-address pos)
+                (do (set! value (when-not handler contents))
+                    (recur (+ pc 2) pos))))
+
+            :begin
+            (do (.pushValue this (builder/begin-rule builder (aget constants arg)))
+                (recur (+ pc 2) pos))
+
+            :combine
+            (let [i (dec values-top)]
+              (aset values i ((aget constants arg) builder (aget values i) value))
+              (recur (+ pc 2) pos))
+
+            :end
+            (do (set! value (builder/end-rule builder (.popValue this) (aget constants arg)))
+                (recur (+ pc 2) pos))
+
+            :mark
+            (do (.pushValue this pos)
+                (recur (+ pc 2) pos))
+
+            :text
+            (let [start (long (.popValue this))]
+              (set! value (builder/terminal builder (aget constants arg) input start pos))
+              (recur (+ pc 2) pos)))))))
+
+  (push [_ tag pos address]
+    (let [i (* 4 top)]
+      (when (= i (alength stack))
+        (set! stack (java.util.Arrays/copyOf stack (* 2 i))))
+      (aset stack i tag)
+      (aset stack (+ i 1) pos)
+      (aset stack (+ i 2) values-top)
+      (aset stack (+ i 3) address)
+      (set! top (inc top))
+      nil))
+
+  (pushValue [_ v]
+    (when (= values-top (alength values))
+      (set! values (java.util.Arrays/copyOf values (* 2 values-top))))
+    (aset values values-top v)
+    (set! values-top (inc values-top))
+    nil)
+
+  (popValue [_]
+    (set! values-top (dec values-top))
+    (let [v (aget values values-top)]
+      (aset values values-top nil)
+      v))
+
+  (backtrack [this]
+    ;; Pops the stack up to the last choice, storing the failure of the
+    ;; memoized calls on the way. Returns the address of the choice, which is
+    ;; left just above the top of the stack, or -1 if there is none.
+    (loop []
+      (if (zero? top)
+        -1
+        (let [i (* 4 (dec top))
+              tag (aget stack i)]
+          (set! top (dec top))
+          (case (int (bit-and tag 3))
+            0 (let [height (aget stack (+ i 2))]
+                ;; Release the values and the events of the abandoned
+                ;; alternative.
+                (java.util.Arrays/fill values (int height) (int values-top) nil)
+                (set! values-top height)
+                (set! choices (dec choices))
+                (when log
+                  (.clear (.subList log (int (bit-shift-right tag 2)) (.size log)))
+                  (when (zero? choices) (.flush this)))
+                (when (and stream (zero? choices))
+                  (.release this (aget stack (inc i))))
+                (aget stack (+ i 3)))
+            1 (recur)
+            2 (do (.memoStore this (bit-shift-right tag 2) (aget stack (inc i)) ::failed)
+                  (recur)))))))
+
+  (fail [_ pos expression]
+    ;; Only the errors at the furthest position are kept, or only that
+    ;; position when there is no errors set.
+    (when (> pos errors-pos)
+      (when errors (.clear errors))
+      (set! errors-pos pos)
+      (when stream (.markError stream pos)))
+    (when (and errors (= pos errors-pos))
+      (.add errors expression))
+    nil)
+
+  (event [_ event rule start end]
+    (if (zero? choices)
+      (handler event rule start end)
+      (.add log #(handler event rule start end)))
+    nil)
+
+  (flush [_]
+    (doseq [f log]
+      (f))
+    (.clear log)
+    nil)
+
+  (more [_ pc pos index]
+    ;; When the stream suspends the parse because it has no more text yet,
+    ;; the instruction at `pc` is run again on resuming.
+    (if stream
+      (do (set! resume-pc pc)
+          (set! resume-pos pos)
+          (.fill stream index))
+      false))
+
+  (resume [this]
+    (.run this resume-pc resume-pos))
+
+  (release [_ pos]
+    ;; The text is needed from the oldest choice or terminal rule on.
+    (let [floor (loop [i 0]
+                  (if (< i top)
+                    (let [tag (aget stack (* 4 i))]
+                      (if (or (zero? (bit-and tag 3))
+                              (= :text (aget kinds (bit-shift-right tag 2))))
+                        (aget stack (inc (* 4 i)))
+                        (recur (inc i))))
+                    pos))]
+      (.release stream floor)))
+
+  (memoColumn [_ rule]
+    (when memo
+      (or (aget memo rule)
+          (aset memo rule (object-array (inc (.length input)))))))
+
+  (memoStore [this rule pos entry]
+    (aset stats 1 (inc (aget stats 1)))
+    (aset ^objects (.memoColumn this rule) pos entry)
+    nil)
+
+  (matchRegex [this id pc pos]
+    (let [matcher (or (aget matchers id)
+                      (aset matchers id (.matcher ^java.util.regex.Pattern (aget patterns id) "")))]
+      (loop []
+        (.reset ^java.util.regex.Matcher matcher input)
+        (.region ^java.util.regex.Matcher matcher pos (.length input))
+        (let [found (.lookingAt ^java.util.regex.Matcher matcher)]
+          ;; A match that reached the end of a stream may change with more text.
+          (cond (and (.hitEnd ^java.util.regex.Matcher matcher) (.more this pc pos (.length input)))
+                (recur)
+                found
+                (.end ^java.util.regex.Matcher matcher)
+                :else
+                (do (.fail this pos (aget patterns id)) -1))))))
+
+  (value [_] value)
+  (errorsPos [_] errors-pos)
+  (errors [_] errors))
+
+
+;;; Namespace entry functions.
+
+(def ^:private programs
+  (java.util.Collections/synchronizedMap (java.util.WeakHashMap.)))
+
+(defn program?
+  "Returns true if `x` is a compiled Program."
+  [x]
+  (instance? Program x))
+
+(defn program
+  "Returns the Program for the `rules` map, which is compiled only once for as
+  long as the rules map is in use."
+  [rules]
+  (or (.get ^java.util.Map programs rules)
+      (let [program (compile-rules rules)]
+        (.put ^java.util.Map programs rules program)
+        program)))
+
+(def ^:private null-builder
+  "The builder used when the events are passed to a handler, which builds no
+  contents."
+  (reify builder/Builder
+    (begin-rule [_ rule] nil)
+    (terminal [_ rule input start end] nil)
+    (child [_ result rule item content] nil)
+    (repetition [_ result rule repetition contents] nil)
+    (end-rule [_ result rule] nil)))
+
+(defn- machine-result
+  "Returns the result of the `machine`, after calling `run` to run it. When it
+  has been suspended by its stream, the result is a map with the machine under
+  the `:suspended` key."
+  [^Machine machine run memoize stats]
+  (let [end (try (run)
+                 (catch Exception e
+                   (if (identical? e stream/suspension) ::suspended (throw e))))]
+    (if (= ::suspended end)
+      {:suspended machine}
+      {:content (.value machine)
+       :end end
+       :errors (.errors machine)
+       :errors-pos (.errorsPos machine)
+       :stats (when memoize (core/memo-stats {:stats stats}))})))
+
+(defn parse-program
+  "Parse the `text` by running the `program`, starting from the `start` rule.
+  Takes the `options` and returns a map like
+  `crustimoney.internal.compiler/parse-grammar`. When the options have a
+  `:handler`, the events of the parse are passed to it instead. When they
+  have a `:log`, the calls the builder adds to it are run once they can no
+  longer be undone. The program is not memoized then, nor when the text is a
+  stream. A stream may suspend the parse, see `machine-result`."
+  [{:keys [code constants entries kinds names patterns charsets starts recognizers]} start
+   ^CharSequence text {:keys [memoize recognize builder handler log offset] :as options}]
+  (let [address (or ((if recognize recognizers starts) start)
+                    (compiler/invalid-expression nil))
+        stats (long-array 2)
+        log (or log (when handler (java.util.ArrayList.)))
+        machine (Machine. code constants entries kinds patterns charsets text
+                          (object-array (count patterns))
+                          (when (and memoize (not log) (not (stream/stream? text)))
+                            (object-array (count entries)))
+                          stats
+                          (cond handler null-builder builder builder :else core/ast-builder)
+                          names (when (stream/stream? text) text)
+                          handler log 0
+                          (when (compiler/keep-errors? options) (java.util.HashSet.))
+                          -1 nil (long-array 64) 0 (object-array 16) 0 0 0)]
+    (machine-result machine #(.run machine address (long (or offset 0))) memoize stats)))
+
+(defn resume-program
+  "Resumes the parse of a Machine that was suspended, as returned by
+  `parse-program` under the `:suspended` key. Returns the same map as
+  `parse-program`."
+  [machine]
+  (machine-result machine #(.resume ^Machine machine) false nil))
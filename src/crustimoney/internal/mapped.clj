@@ -0,0 +1,111 @@
+(ns crustimoney.internal.mapped
+  "This namespace contains the text of a memory-mapped file, as used by
+  `crustimoney.parse/parse-file`. These are not intended to be called directly
+  by the user."
+  (:use [crustimoney.i18n :only (i18n)])
+  (:import [java.nio ByteBuffer]
+           [java.nio.charset Charset]
+           [java.nio.channels FileChannel FileChannel$MapMode]))
+
+
+;;; The mapped text.
+
+;; A mapped text is a CharSequence over the bytes of a file, which are not
+;; decoded while parsing: every byte is a character, from \u0000 to \u00ff.
+;; Positions are therefore byte offsets, and ASCII is matched as is. Only
+;; when a part of the text is turned into a String, are its bytes decoded
+;; using the charset of the file, so the texts in the AST are read correctly.
+
+(deftype MappedText [^ByteBuffer buffer ^int start ^int end ^Charset charset]
+  CharSequence
+  (length [_]
+    (- end start))
+  (charAt [_ i]
+    (if (and (>= i 0) (< i (- end start)))
+      (char (bit-and (.get buffer (int (+ start i))) 0xff))
+      (throw (IndexOutOfBoundsException. (str i)))))
+  (subSequence [_ from to]
+    (if (and (<= 0 from to) (<= to (- end start)))
+      (MappedText. buffer (+ start from) (+ start to) charset)
+      (throw (IndexOutOfBoundsException. (str from " " to)))))
+  (toString [_]
+    (let [bytes (byte-array (- end start))
+          view (.duplicate buffer)]
+      (.position view start)
+      (.get view bytes)
+      (String. bytes charset))))
+
+(defn- open-channel
+  ^FileChannel [path]
+  (FileChannel/open (.toPath (java.io.File. (str path)))
+                    (into-array java.nio.file.OpenOption
+                                [java.nio.file.StandardOpenOption/READ])))
+
+(defn file-size
+  "Returns the size of the file at `path` in bytes."
+  [path]
+  (with-open [channel (open-channel path)]
+    (.size channel)))
+
+(defn map-range
+  "Returns the `length` bytes of the file at `path` from the offset `start`
+  as a MappedText, which is decoded using the `charset` name. The `start` may
+  be beyond 2 GB, but the `length` may not."
+  [path charset start length]
+  (when (> length Integer/MAX_VALUE)
+    (throw (Exception. ^String (i18n :file-too-large path Integer/MAX_VALUE))))
+  (with-open [channel (open-channel path)]
+    ;; The mapping stays valid after the channel has been closed.
+    (MappedText. (.map channel FileChannel$MapMode/READ_ONLY (long start) (long length))
+                 0 length (Charset/forName charset))))
+
+(defn map-file
+  "Returns the file at `path` as a MappedText, which is decoded using the
+  `charset` name. The file is mapped into memory instead of read, so it does
+  not take space on the heap. The file may not be larger than 2 GB, as the
+  offsets in a CharSequence are ints."
+  [path charset]
+  (map-range path charset 0 (file-size path)))
+
+(def ^:private ^:const scan-size
+  "The number of bytes that are mapped at a time when scanning a file."
+  (* 64 1024 1024))
+
+(defn line-and-column
+  "Returns a tuple with the line and column of the offset `pos` in the file
+  at `path`, both starting at 1, counting bytes. The file is scanned up to
+  the offset, so it may be beyond 2 GB."
+  [path pos]
+  (let [pos (long pos)]
+    (with-open [channel (open-channel path)]
+      (loop [base 0 line 1 line-start 0]
+        (if (< base pos)
+          (let [length (min scan-size (- pos base))
+                buffer (.map channel FileChannel$MapMode/READ_ONLY base length)
+                [line line-start] (loop [i 0 line line line-start line-start]
+                                    (if (< i length)
+                                      (if (= 10 (.get buffer (int i)))
+                                        (recur (inc i) (inc line) (+ base i 1))
+                                        (recur (inc i) line line-start))
+                                      [line line-start]))]
+            (recur (+ base length) (long line) (long line-start)))
+          [line (inc (- pos (long line-start)))])))))
+
+(defn next-line
+  "Returns the offset after the first newline at or after `pos` in the file
+  at `path`, or the size of the file when there is none."
+  [path pos]
+  (with-open [channel (open-channel path)]
+    (let [size (.size channel)]
+      (loop [base (long pos)]
+        (if (< base size)
+          (let [length (min (* 64 1024) (- size base))
+                buffer (.map channel FileChannel$MapMode/READ_ONLY base length)
+                found (loop [i 0]
+                        (cond (= i length) -1
+                              (= 10 (.get buffer (int i))) i
+                              :else (recur (inc i))))]
+            (if (neg? found)
+              (recur (+ base length))
+              (+ base found 1)))
+          size)))))
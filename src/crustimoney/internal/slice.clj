@@ -0,0 +1,72 @@
+(ns crustimoney.internal.slice
+  "This namespace contains the slices, which are the texts of the terminals in
+  the AST when it is built with the `:slices` option. These are not intended
+  to be called directly by the user.")
+
+
+;;; The slice type.
+
+;; A slice is a view on a part of the input, so it shares the characters of
+;; the input instead of copying them. It equals a String or another slice
+;; with the same characters, and has the same hash code as such a String, so
+;; it can be compared and looked up like one. A String never equals a slice
+;; though, so a slice should be the first argument of `=`, or be turned into a
+;; String using `str`.
+
+(deftype Slice [^CharSequence input ^int start ^int end
+                ^:unsynchronized-mutable ^int hash]
+  CharSequence
+  (length [_]
+    (- end start))
+  (charAt [_ i]
+    (if (and (>= i 0) (< i (- end start)))
+      (.charAt input (+ start i))
+      (throw (IndexOutOfBoundsException. (str i)))))
+  (subSequence [_ from to]
+    (if (and (<= 0 from to) (<= to (- end start)))
+      (Slice. input (+ start from) (+ start to) 0)
+      (throw (IndexOutOfBoundsException. (str from " " to)))))
+  (toString [_]
+    (.toString (.subSequence input start end)))
+
+  Comparable
+  (compareTo [this other]
+    (let [^CharSequence other other
+          length (.length this)
+          other-length (.length other)]
+      (loop [i 0]
+        (if (< i (min length other-length))
+          (let [c (int (.charAt input (+ start i)))
+                d (int (.charAt other i))]
+            (if (= c d) (recur (inc i)) (- c d)))
+          (- length other-length)))))
+
+  Object
+  (equals [this other]
+    (or (identical? this other)
+        (and (or (instance? String other) (instance? Slice other))
+             (let [^CharSequence other other
+                   length (.length this)]
+               (and (= length (.length other))
+                    (loop [i 0]
+                      (cond (= i length) true
+                            (= (.charAt input (+ start i)) (.charAt other i)) (recur (inc i))
+                            :else false)))))))
+  (hashCode [_]
+    ;; Computed as String does, and cached like it.
+    (when (and (zero? hash) (< start end))
+      (set! hash (int (loop [i start h 0]
+                        (if (< i end)
+                          (recur (inc i) (unchecked-add-int (unchecked-multiply-int 31 h)
+                                                            (int (.charAt input i))))
+                          h)))))
+    hash))
+
+(defmethod print-method Slice
+  [slice ^java.io.Writer writer]
+  (print-method (str slice) writer))
+
+(defn slice
+  "Returns a slice of the `input` between the offsets `start` and `end`."
+  [input start end]
+  (Slice. input start end 0))
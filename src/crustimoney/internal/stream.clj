@@ -0,0 +1,159 @@
+(ns crustimoney.internal.stream
+  "This namespace contains the text of a Reader, as parsed by
+  `crustimoney.parse/parse-reader`. These are not intended to be called
+  directly by the user."
+  (:use [crustimoney.i18n :only (i18n)]))
+
+
+;;; The reader text.
+
+;; A reader text is a CharSequence over the characters read so far, of which
+;; only a window is kept in a buffer. Its length is the number of characters
+;; read so far, and the parsing machine calls `fill` to read more when it
+;; reaches it. The machine calls `release` with the position before which it
+;; will not read anymore, after which the buffer may drop the text before it.
+;; The line and column of the released text are counted on the way, for the
+;; position of an error. The machine calls `markError` with the furthest
+;; position where the parse failed so far, which may be released before the
+;; parse ends, so its line and column are kept when the text is released.
+;;
+;; When the window has a maximum size, the buffer drops the oldest text when
+;; it is full, even if it has not been released. If the machine backtracks
+;; into that text, reading it throws an exception.
+;;
+;; The positions in a CharSequence are ints, so no more than 2^31 - 1
+;; characters can be read. Reading beyond that throws an exception too.
+
+(definterface IStream
+  (^boolean fill [^long pos])
+  (release [^long pos])
+  (markError [^long pos])
+  (lineAndColumn [^long pos]))
+
+(def ^:private ^:const chunk-size 8192)
+
+(deftype ReaderText [^java.io.Reader reader
+                     ^long window
+                     ^:unsynchronized-mutable ^chars buffer
+                     ^:unsynchronized-mutable ^long offset
+                     ^:unsynchronized-mutable ^long start
+                     ^:unsynchronized-mutable ^long end
+                     ^:unsynchronized-mutable eof
+                     ^:unsynchronized-mutable ^long line
+                     ^:unsynchronized-mutable ^long column
+                     ^:unsynchronized-mutable ^long error-pos
+                     ^:unsynchronized-mutable ^long error-line
+                     ^:unsynchronized-mutable ^long error-column]
+  ;; The buffer holds the text from the `offset`, up to the `end` index. The
+  ;; text before the `start` index has been released, and the `line` and
+  ;; `column` are those of the start. Those of the marked `error-pos` are
+  ;; kept once it has been released.
+  CharSequence
+  (length [_]
+    (int (+ offset end)))
+  (charAt [this i]
+    (let [index (- i offset)]
+      (when (< index start)
+        (throw (Exception. ^String (i18n :window-exceeded i (+ offset start)))))
+      (aget buffer index)))
+  (subSequence [this from to]
+    (let [index (- from offset)]
+      (when (< index start)
+        (throw (Exception. ^String (i18n :window-exceeded from (+ offset start)))))
+      (String. buffer (int index) (int (- to from)))))
+  (toString [_]
+    (String. buffer (int start) (int (- end start))))
+
+  IStream
+  (fill [this pos]
+    (loop []
+      (cond (< (- pos offset) end) true
+            eof false
+            :else
+            (do (when (> (+ end chunk-size) (alength buffer))
+                  (let [kept (- end start)
+                        size (max (alength buffer) (* 2 (+ kept chunk-size)))]
+                    (when (and (pos? window) (> (+ kept chunk-size) window))
+                      ;; Drop the oldest text that does not fit the window.
+                      (.release this (+ offset (- (+ end chunk-size) window))))
+                    (let [kept (- end start)
+                          target (if (<= (+ kept chunk-size) (alength buffer))
+                                   buffer
+                                   (char-array size))]
+                      (System/arraycopy buffer start target 0 kept)
+                      (set! buffer target)
+                      (set! offset (+ offset start))
+                      (set! start 0)
+                      (set! end kept))))
+                (let [n (.read reader buffer (int end) (int chunk-size))]
+                  (cond (neg? n) (set! eof true)
+                        (> (+ offset end n) Integer/MAX_VALUE)
+                        (throw (Exception. ^String (i18n :stream-too-large Integer/MAX_VALUE)))
+                        :else (set! end (+ end n))))
+                (recur)))))
+  (release [_ pos]
+    (let [index (min (- pos offset) end)
+          error-index (- error-pos offset)]
+      (loop [i start]
+        (when (< i index)
+          (when (= i error-index)
+            (set! error-line line)
+            (set! error-column column))
+          (if (= \newline (aget buffer i))
+            (do (set! line (inc line))
+                (set! column 1))
+            (set! column (inc column)))
+          (recur (inc i))))
+      (set! start (max start index))
+      nil))
+  (markError [_ pos]
+    (set! error-pos pos))
+  (lineAndColumn [_ pos]
+    ;; Returns nil for a position in the dropped text, other than the marked
+    ;; position of an error.
+    (let [index (- pos offset)]
+      (cond (and (= pos error-pos) (< index start))
+            [error-line error-column]
+            (<= start index end)
+            (loop [i start line line column column]
+              (cond (= i index) [line column]
+                    (= \newline (aget buffer i)) (recur (inc i) (inc line) 1)
+                    :else (recur (inc i) line (inc column))))))))
+
+(def suspension
+  "The exception thrown by the Reader of a `chunk-reader` when it has no more
+  text yet. It is thrown through the parsing machine, which can then be
+  resumed when there is more text."
+  (Exception. "The text is suspended until more is pushed."))
+
+(defn chunk-reader
+  "Returns a Reader of the Strings in the `chunks` queue, which are taken from
+  it as they are read. When the queue is empty, the reader is at its end if
+  calling `closed?` returns true, or it throws the `suspension` otherwise."
+  [^java.util.Queue chunks closed?]
+  (let [offset (atom 0)]
+    (proxy [java.io.Reader] []
+      (read [^chars buffer start length]
+        (loop []
+          (if-let [^String chunk (.peek chunks)]
+            (let [from (long @offset)
+                  n (min (long length) (- (.length chunk) from))]
+              (.getChars chunk (int from) (int (+ from n)) buffer (int start))
+              (if (= (+ from n) (.length chunk))
+                (do (.poll chunks) (reset! offset 0))
+                (reset! offset (+ from n)))
+              (if (zero? n) (recur) n))
+            (if (closed?) -1 (throw suspension)))))
+      (close []))))
+
+(defn reader-text
+  "Returns a ReaderText for the `reader`, keeping at most `window` characters
+  in memory if it is given. The window is at least two chunks of reading."
+  [reader window]
+  (ReaderText. reader (if window (max (long window) (* 2 chunk-size)) 0)
+               (char-array (* 2 chunk-size)) 0 0 0 false 1 1 -1 0 0))
+
+(defn stream?
+  "Returns true if `x` is a text read from a stream."
+  [x]
+  (instance? IStream x))
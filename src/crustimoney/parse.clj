@@ -1,9 +1,17 @@
 (ns crustimoney.parse
   "This namespace contains the functions that should be called by the users
   of this library. The main function is `parse`."
-  (:require [crustimoney.internal.core :as core])
+  (:require [crustimoney.builder :as builder]
+            [crustimoney.internal.core :as core]
+            [crustimoney.internal.compiler :as compiler]
+            [crustimoney.internal.bytecode :as bytecode]
+            [crustimoney.internal.machine :as machine]
+            [crustimoney.internal.flat :as flat]
+            [crustimoney.internal.mapped :as mapped]
+            [crustimoney.internal.stream :as stream])
   (:use [crustimoney.internal.utils]
-        [crustimoney.i18n :only (i18n)]))
+        [crustimoney.i18n :only (i18n)])
+  (:import [crustimoney.internal.stream IStream]))
 
 
 ;;; Private helper functions.
@@ -13,13 +21,140 @@
   [errors line column pos]
   {:error (mapify errors line column pos)})
 
+(defn- position
+  "Returns the line and column of the position `pos` in the `text`, which may
+  be a stream."
+  [pos text]
+  (if (stream/stream? text)
+    (.lineAndColumn ^IStream text pos)
+    (core/line-and-column pos text)))
+
+(defn- at-end?
+  "Returns true if `pos` is the end of the `text`, which may be a stream."
+  [pos text]
+  (if (stream/stream? text)
+    (not (.fill ^IStream text pos))
+    (= pos (count text))))
+
+(defn- make-result
+  "Create the result map, given the `text`, the `content` and the `end`
+  position of the parse (which is -1 if it failed), and the `errors` and
+  `errors-pos` that were found. The errors are the terminal expressions that
+  were expected, which are only turned into messages here, when the parse has
+  failed."
+  [text content end errors errors-pos]
+  (cond (neg? end)
+        (let [[line column] (position errors-pos text)]
+          (make-error (set (map core/expected-terminal errors)) line column errors-pos))
+        ;; Check whether all the text has been parsed.
+        (at-end? end text)
+        {:succes content}
+        :else
+        (let [errors-pos (if (empty? errors) end errors-pos)
+              errors (if (empty? errors)
+                       #{(i18n :expected-eof)}
+                       (set (map core/expected-terminal errors)))
+              [line column] (position errors-pos text)]
+          (make-error errors line column errors-pos))))
+
+(defn- parse-text
+  "Parse the `text` using the `rules`, starting from the `start` rule, with the
+  interpreter. Takes the `options` and returns a map like
+  `crustimoney.internal.compiler/parse-grammar`. The `:memo` option is the
+  memoization table to use instead of a new one, and the `:tails` option the
+  tail recursion of the rules, as `prepare` derives it."
+  [rules start text {:keys [memoize recognize builder offset memo tails] :as options}]
+  (let [memo (or memo (when memoize (core/memo-table rules (count text))))
+        init-state (core/map->State {:rules rules
+                                     :input text
+                                     :pos (or offset 0)
+                                     :as-terminal recognize
+                                     :errors (when (compiler/keep-errors? options) #{})
+                                     :errors-pos -1
+                                     :memo memo
+                                     :matchers (core/matcher-cache)
+                                     :tails (or tails (core/cached-tail-recursion rules))
+                                     :builder (or builder core/ast-builder)})
+        result (core/parse-nonterminal start init-state)
+        {:keys [content new-state]} (:succes result)
+        state (or new-state result)]
+    {:content content
+     :end (if new-state (:pos new-state) -1)
+     :errors (:errors state)
+     :errors-pos (:errors-pos state)
+     :stats (when memo (core/memo-stats memo))}))
+
+(defn- final-content
+  "Returns the `content` of the `start` rule of a succesful parse as it is
+  returned, given the `:builder` and `:actions` options."
+  [content start {:keys [builder actions]}]
+  (cond builder content
+        actions (core/act actions start content)
+        :else (core/finish-content content)))
+
+(defn- program
+  "Returns the program for the parsing machine of the `rules` map, compiled
+  grammar or program."
+  [rules]
+  (cond (machine/program? rules) rules
+        (compiler/grammar? rules) (machine/program (:rules rules))
+        :else (machine/program rules)))
+
+(defn- run-parser
+  "Parse the `text` using the `rules` map, compiled grammar or program,
+  starting from the `start` rule, with the engine and the other `options`.
+  Returns a map like `crustimoney.internal.compiler/parse-grammar`."
+  [rules start text {:keys [engine] :as options}]
+  (cond (compiler/grammar? rules)
+        (compiler/parse-grammar rules start text options)
+        (machine/program? rules)
+        (machine/parse-program rules start text options)
+        (= engine :vm)
+        (machine/parse-program (machine/program rules) start text options)
+        :else
+        (parse-text rules start text options)))
+
+(defn- prepare
+  "Returns a tuple with the `rules` and the `options` to parse many texts
+  with, in which what `run-parser` derives from a rules map has been derived
+  once. That is the program for the `:vm` engine, and the `:tails` option for
+  the interpreter. Looking these up for every text would make the threads
+  that parse in parallel wait on the caches of all rules maps."
+  [rules {:keys [engine] :as options}]
+  (cond (or (compiler/grammar? rules) (machine/program? rules)) [rules options]
+        (= engine :vm) [(machine/program rules) options]
+        :else [rules (assoc options :tails (core/cached-tail-recursion rules))]))
+
+
+;; An effect is called with the value of its rule, so with a builder of the
+;; AST. The builder adds the calls of the effects to the log of the parsing
+;; machine, which runs them once it can no longer backtrack. The effect of
+;; the start rule is called when the parse has succeeded.
+
+(defn- parse-with-effects
+  "Parse the `text` using the parsing machine, like `parse` does, calling the
+  functions in the `:effects` of the `options` for the rules in the parse."
+  [rules start text {:keys [builder effects] :as options}]
+  (let [log (java.util.ArrayList.)
+        {:keys [content end errors errors-pos]}
+        (machine/parse-program (program rules) start text
+                               (assoc (dissoc options :memoize :recognize)
+                                 :log log
+                                 :builder (or builder (core/ast-builder-for options log))))
+        content (when (>= end 0) (final-content content start options))
+        effect (when-not builder (get effects start))]
+    (when (and effect (>= end 0) (at-end? end text))
+      (effect content))
+    (make-result text content end errors errors-pos)))
+
 
 ;;; Main functions.
 
 (defn parse
-  "Parse the given `text` string using the specified `rules` map, starting from
-  the rule specified by the `start` keyword. See the documentation on how to
-  create a rules map.
+  "Parse the given `text` string (or other CharSequence) using the specified
+  `rules` map, starting from the rule specified by the `start` keyword. See the
+  documentation on how to create a rules map. Instead of a rules map, a grammar
+  compiled by `compile-grammar` may be given, which yields the same results.
 
   This function returns either a map with either a `:succes` or an `:error` key
   in it. The value of the `:succes` key is the abstract syntax tree (AST). See
@@ -31,31 +166,688 @@
   - `:line`   contains the line number of where the error(s) occured.
   - `:column` contains the column number of where the error(s) occured in the
               line.
-  - `:pos`    contains the overall character position of where the error occured."
-  [rules start text]
-  (let [init-state (core/map->State {:rules rules
-                                     :remainder text
-                                     :pos 0
-                                     :errors #{}
-                                     :errors-pos 0})
-        result (core/parse-nonterminal start init-state)]
-    (if-let [succes (:succes result)]
-      ;; Check whether all the text has been parsed.
-      (if (empty? (get-in succes [:new-state :remainder]))
-        {:succes (:content succes)}
-        (let [errors (get-in succes [:new-state :errors])
-              errors-pos (if (empty? errors)
-                            (get-in succes [:new-state :pos])
-                            (get-in succes [:new-state :errors-pos]))
-              errors (if (empty? errors) #{(i18n :expected-eof)} errors)
-              [line column] (core/line-and-column errors-pos text)]
-          (make-error errors line column errors-pos)))
-      (let [errors-pos (:errors-pos result)
-            [line column] (core/line-and-column errors-pos text)]
-        (make-error (:errors result) line column errors-pos)))))
+  - `:pos`    contains the overall character position of where the error occured.
+
+  An optional `options` map can be supplied, with the following keys:
+
+  - `:memoize` when true, the result of every rule is cached per position in
+               the text (packrat parsing), which guarantees linear parse time.
+               The returned map then also has a `:stats` key, with the number
+               of cache `:hits` and `:misses`.
+  - `:engine`  when `:vm`, the rules map is compiled to a program for a parsing
+               machine, which runs it in a single loop with an explicit
+               backtrack stack instead of recursive calls. The depth of the
+               recursion in the rules is then limited by the heap, instead of
+               by the JVM stack. The program is compiled once per rules map.
+               The default engine is `:interpreter`. This option is ignored
+               for compiled grammars.
+  - `:builder` an implementation of the `crustimoney.builder/Builder`
+               protocol, which builds the value of the `:succes` key instead
+               of the AST.
+  - `:flat`    when true, the AST is recorded in a few primitive int arrays
+               instead of maps, vectors and strings, which takes a fraction of
+               the memory. The value of the `:succes` key is then a read-only
+               view, which can be navigated like the AST: its maps can be
+               looked up by rule, and its vectors are sequential and indexed.
+               The text of a terminal is only taken from the input when it is
+               read.
+  - `:slices`  when true, the texts in the AST are not Strings, but slices of
+               the `text`: CharSequences that share its characters instead of
+               copying them. A slice equals a String with the same characters
+               and has the same hash code, but a String does not equal a
+               slice, so use `str` where a String is needed.
+  - `:actions` a map from rules to functions, which are called with the
+               content of their rule as soon as it has been parsed. The result
+               replaces the content in the AST, and is what the functions of
+               the enclosing rules get. An action is not called for every
+               recursion of a recurring rule, but once with its whole vector.
+               As the parser may backtrack, an action may be called for a
+               rule that is not part of the final AST, so actions should not
+               have side effects. Use `:effects` for those.
+  - `:effects` a map from rules to functions, which are called with the value
+               of their rule in the AST, as the result of its action. The
+               calls are held back while the parser may still backtrack over
+               the rule, so an effect is only called for the rules that are
+               part of the parse, in order. When the parse fails, the effects
+               of the rules before the failure may already have been called.
+               The text is then parsed with the parsing machine of the `:vm`
+               engine, also when a compiled grammar is given, and `:memoize`
+               is ignored. The effects are ignored with `:builder` or `:flat`."
+  ([rules start text]
+     (parse rules start text {}))
+  ([rules start text {:keys [memoize builder flat effects] :as options}]
+     (if (and effects (not builder) (not flat))
+       (parse-with-effects rules start text options)
+       (let [tree (when flat (flat/tree text))
+             parse-options (cond tree (assoc options :builder (flat/tree-builder tree))
+                                 builder options
+                                 :else (assoc options :builder (core/ast-builder-for options)))
+             {:keys [content end errors errors-pos stats]}
+             (run-parser rules start text (dissoc parse-options :recognize))
+             content (cond tree (when (>= end 0) (flat/root tree content))
+                           (>= end 0) (final-content content start options))
+             result (make-result text content end errors errors-pos)]
+         (if memoize
+           (assoc result :stats stats)
+           result)))))
+
+(defn parse-file
+  "Like `parse`, but parses the file at `path`. The file is mapped into memory
+  instead of read into a String, so it takes no space on the heap and parsing
+  can start right away. Its bytes are not decoded while parsing: the parser
+  sees every byte as a character, so a file in ASCII or UTF-8 can be parsed
+  with a grammar of ASCII terminals, and positions and columns count bytes.
+  The texts in the AST are decoded when they are turned into Strings.
+
+  The `options` are those of `parse`, but `:slices` is ignored, as the texts
+  are decoded. There is one more key:
+
+  - `:charset` the name of the charset of the file, used for decoding the
+               texts. The default is \"UTF-8\".
+
+  A file larger than 2 GB cannot be parsed as a single text, but a file of
+  records of any size can be parsed by `parse-seq` and `parse-lines`."
+  ([rules start path]
+     (parse-file rules start path {}))
+  ([rules start path {:keys [charset] :as options}]
+     (parse rules start (mapped/map-file path (or charset "UTF-8"))
+            (dissoc options :slices))))
+
+(defn recognize
+  "Like `parse`, but only recognizes whether the `text` matches the `rules`,
+  without building an AST: the start rule is parsed as if it were a terminal,
+  with any engine. Only the furthest position where a terminal failed to match
+  is kept. This function returns nil when the whole text matches. Otherwise,
+  it returns a map with the `:pos` of the error, as `parse` would report it.
+
+  The `options` are those of `parse`, with one more key:
+
+  - `:errors` when true, the expected terminals are kept as well, and the
+              returned map is the same as the `:error` map of `parse`."
+  ([rules start text]
+     (recognize rules start text {}))
+  ([rules start text {:keys [errors] :as options}]
+     (let [result (run-parser rules start text (assoc options :recognize true))
+           {:keys [end errors-pos]} result]
+       (cond (= end (count text)) nil
+             errors (:error (make-result text nil end (:errors result) errors-pos))
+             :else {:pos (if (neg? errors-pos) end errors-pos)}))))
+
+(defn valid?
+  "Returns true if the whole `text` matches the `rules`, starting from the
+  `start` rule, like `recognize` does."
+  ([rules start text]
+     (valid? rules start text {}))
+  ([rules start text options]
+     (nil? (recognize rules start text (dissoc options :errors)))))
+
+(defn parse-events
+  "Like `parse`, but instead of building an AST, the rules are passed to the
+  `handler` as events, while they are parsed. The handler is a function that
+  is called with four arguments: the event, the rule, and the start and end
+  offsets in the text. The events are:
+
+  - `:start`    when the parse of a rule with a vector expression starts. The
+                end offset is nil.
+  - `:end`      when the parse of that rule has ended.
+  - `:terminal` when a rule with a terminal expression, or a rule parsed as a
+                terminal (with a minus sign in its name), has matched.
+
+  The text is parsed with the parsing machine of the `:vm` engine, also when a
+  compiled grammar is given. Instead of a text, a java.io.Reader may be given,
+  which is read like `parse-reader` does. Events are held back while the parser may still
+  backtrack over them, so the handler only gets those of the rules that are
+  part of the parse, in order. Only the events within the alternatives that
+  may still be abandoned are kept in memory.
+
+  This function returns nil when the whole text has been parsed. Otherwise, it
+  returns the same map as the `:error` key of `parse`. The handler may then
+  already have been called for the start of the text. The `options` are those
+  of `parse`, but `:memoize` is ignored."
+  ([rules start text handler]
+     (parse-events rules start text handler {}))
+  ([rules start text handler {:keys [window] :as options}]
+     (let [text (if (instance? java.io.Reader text) (stream/reader-text text window) text)
+           {:keys [end errors errors-pos]}
+           (machine/parse-program (program rules) start text
+                                  (assoc (dissoc options :recognize :memoize)
+                                    :handler handler))]
+       (when-not (and (>= end 0) (at-end? end text))
+         (:error (make-result text nil end errors errors-pos))))))
+
+(defn parse-reader
+  "Like `parse`, but reads the text from the java.io.Reader `reader` while
+  parsing, keeping only a window of it in memory. The text is parsed with the
+  parsing machine of the `:vm` engine, also when a compiled grammar is given.
+  The text before the oldest alternative that the parser may still backtrack
+  to is released, as is the text of the iterations of a repetition, once they
+  have been parsed. A grammar that parses a large text as a repetition of
+  items therefore only needs the text of an item or so in memory, but every
+  alternative that is pending keeps the text after it.
+
+  The `options` are those of `parse`, including `:effects`, but `:memoize`,
+  `:flat` and `:slices` are ignored, and there is one more key:
+
+  - `:window` the maximum number of characters to keep in memory. When the
+              text of a pending alternative does not fit, the oldest text is
+              dropped anyway. If the parser then needs to backtrack to it, an
+              exception is thrown.
+
+  The positions in the error map are those in the whole text. As these are
+  ints, at most 2^31 - 1 characters can be read; reading more throws an
+  exception."
+  ([rules start reader]
+     (parse-reader rules start reader {}))
+  ([rules start reader {:keys [window] :as options}]
+     (parse-with-effects rules start (stream/reader-text reader window)
+                         (dissoc options :slices))))
+
+(def ^:private ^:const window-size
+  "The number of bytes of a file that is mapped at a time, for parsing its
+  records."
+  (bit-shift-left 1 30))
+
+(defn- file-error
+  "Returns the error result of a record in the `text` of a file window, which
+  starts at the offset `base` in the file at `path`, like `make-result`. The
+  position, line and column are those in the file."
+  [path base text end errors errors-pos]
+  (let [{:keys [error] :as result} (make-result text nil end errors errors-pos)]
+    (if (zero? base)
+      result
+      (let [pos (+ (long base) (long (:pos error)))
+            [line column] (mapped/line-and-column path pos)]
+        {:error (assoc error :line line :column column :pos pos)}))))
+
+(defn- file-records
+  "Returns the lazy sequence of `parse-seq` for the file at `path`. The file
+  is mapped in windows, which start at the offset `base` in the file, so it
+  may be larger than 2 GB. When a record starts in the second half of a
+  window, the next window is mapped from its start."
+  [rules start path parse-options options]
+  (let [size (mapped/file-size path)
+        charset (or (:charset options) "UTF-8")
+        window (fn [base] (mapped/map-range path charset base (min window-size (- size base))))]
+    ((fn step [base ^CharSequence text pos]
+       (lazy-seq
+         (let [base (long base)
+               pos (long pos)
+               length (.length text)
+               last-window (= size (+ base length))]
+           (cond (and last-window (= pos length))
+                 nil
+                 (and (not last-window) (> pos (quot window-size 2)))
+                 (step (+ base pos) (window (+ base pos)) 0)
+                 :else
+                 (let [{:keys [content end errors errors-pos]}
+                       (run-parser rules start text (assoc parse-options :offset pos))]
+                   (cond (and (not last-window) (= length (max (long end) (long errors-pos))))
+                         (throw (Exception. ^String (i18n :record-too-large (+ base pos)
+                                                          (quot window-size 2))))
+                         (> end pos)
+                         (cons {:succes (final-content content start options)}
+                               (step base text end))
+                         :else
+                         (list (file-error path base text end errors errors-pos))))))))
+     0 (window 0) 0)))
+
+(defn parse-seq
+  "Returns a lazy sequence of the results of parsing the records in the
+  `input`, which is a text or a java.io.Reader. A record is the text matched
+  by the `start` rule. Unlike `parse`, it does not need to match up to the end
+  of the input: the next record is parsed from where the previous one ended,
+  until the input has been parsed.
+
+  Every result is a map like `parse` returns: a `:succes` key with the AST of
+  a record, or an `:error` key, which is the last result. When the start rule
+  matches no text at all, that is an error too. The positions in an error
+  are those in the whole input. The records are only parsed when the sequence
+  is realized.
+
+  A Reader is read like `parse-reader` does, so only the text of the record
+  that is being parsed is kept in memory. A java.io.File is mapped into
+  memory like `parse-file` does, a window of it at a time, so it may be
+  larger than 2 GB, but a record may not be longer than half a window, which
+  is 512 MB. A text is parsed with the engine given in the `options`, which
+  are those of `parse`, but `:memoize` and `:flat` are ignored. For a Reader
+  or a file, `:slices` is ignored as well, and the `:window` option of
+  `parse-reader` or the `:charset` option of `parse-file` can be given."
+  ([rules start input]
+     (parse-seq rules start input {}))
+  ([rules start input {:keys [builder window] :as options}]
+     (if (instance? java.io.File input)
+       (file-records rules start input
+                     (assoc (dissoc options :memoize :recognize :flat :charset)
+                       :builder (or builder (core/ast-builder-for (dissoc options :slices))))
+                     options)
+     (let [stream (when (instance? java.io.Reader input) (stream/reader-text input window))
+           text (or stream input)
+           program (when stream (program rules))
+           parse-options (assoc (dissoc options :memoize :recognize :flat)
+                           :builder (or builder (core/ast-builder-for
+                                                 (if stream (dissoc options :slices) options))))
+           parse-at (fn [pos]
+                      (let [parse-options (assoc parse-options :offset pos)]
+                        (if stream
+                          (machine/parse-program program start text parse-options)
+                          (run-parser rules start text parse-options))))]
+       ((fn step [pos]
+          (lazy-seq
+            (when-not (at-end? pos text)
+              (let [{:keys [content end errors errors-pos]} (parse-at pos)]
+                (if (> end pos)
+                  (do (when stream (.release ^IStream stream end))
+                      (cons {:succes (final-content content start options)} (step end)))
+                  (list (make-result text nil end errors errors-pos)))))))
+        0)))))
+
+(defn push-parser
+  "Returns a session for parsing a sequence of records, like `parse-seq` does,
+  from a text that is pushed to it in chunks using `push`. The parse of a
+  record is suspended when it reaches the end of the text that has been
+  pushed, instead of failing, and is resumed when more text is pushed. Call
+  `finish` when all the text has been pushed. Only the text of the record
+  that is being parsed is kept in memory.
+
+  The `options` are those of `parse-reader`. A session must not be used by
+  more than one thread at a time."
+  ([rules start]
+     (push-parser rules start {}))
+  ([rules start {:keys [builder window] :as options}]
+     (let [chunks (java.util.ArrayDeque.)
+           closed (atom false)]
+       {:program (program rules)
+        :start start
+        :options options
+        :parse-options (assoc (dissoc options :memoize :recognize :flat)
+                         :builder (or builder (core/ast-builder-for (dissoc options :slices))))
+        :chunks chunks
+        :closed closed
+        :text (stream/reader-text (stream/chunk-reader chunks #(deref closed)) window)
+        :state (atom {:pos 0})})))
+
+(defn- run-session
+  "Parses the records of the `session` until its parse is suspended or the
+  text has been parsed, and returns the results of the records that have been
+  parsed."
+  [{:keys [program start options parse-options ^IStream text state]}]
+  (loop [results []]
+    (let [{:keys [pos machine done]} @state]
+      (if done
+        results
+        (let [result (try (cond machine (machine/resume-program machine)
+                                (.fill text pos) (machine/parse-program program start text
+                                                                        (assoc parse-options
+                                                                          :offset pos))
+                                :else ::end)
+                          (catch Exception e
+                            (if (identical? e stream/suspension) ::suspended (throw e))))
+              {:keys [content end errors errors-pos suspended]} result]
+          (cond (= ::suspended result)
+                results
+                (= ::end result)
+                (do (swap! state assoc :done true)
+                    results)
+                suspended
+                (do (swap! state assoc :machine suspended)
+                    results)
+                (> end pos)
+                (do (.release text end)
+                    (reset! state {:pos end})
+                    (recur (conj results {:succes (final-content content start options)})))
+                :else
+                (do (reset! state {:done true})
+                    (conj results (make-result text nil end errors errors-pos)))))))))
+
+(defn push
+  "Pushes the next `chunk` of text (a String or other CharSequence) to the
+  `session` of a `push-parser`. Returns a vector with the results of the
+  records that could be parsed with it, which are maps like `parse` returns.
+  A result with an `:error` key is the last one. Pushing to a session that
+  has been finished throws an IllegalStateException."
+  [{:keys [^java.util.Queue chunks closed] :as session} chunk]
+  (when @closed
+    (throw (IllegalStateException. ^String (i18n :session-finished))))
+  (.add chunks (str chunk))
+  (run-session session))
+
+(defn finish
+  "Tells the `session` of a `push-parser` that all the text has been pushed.
+  Returns a vector with the results of the records that are left, like
+  `push`."
+  [{:keys [closed] :as session}]
+  (reset! closed true)
+  (run-session session))
+
+(defn- parse-incrementally
+  "Parses the `text` for `parse-incremental`, with the incremental
+  memoization table `memo`. Returns the result, which holds what is needed
+  to parse an edited text in its metadata."
+  [rules start text memo {:keys [memoize] :as options}]
+  (let [parse-options (assoc (dissoc options :recognize :engine)
+                        :memo memo
+                        :builder (core/ast-builder-for (dissoc options :slices)))
+        {:keys [content end errors errors-pos stats]}
+        (parse-text rules start (core/examined-text text) parse-options)
+        result (make-result text (when (>= end 0) (final-content content start options))
+                            end errors errors-pos)]
+    (with-meta (if memoize (assoc result :stats stats) result)
+      {::incremental {:rules rules :start start :text text :memo (atom memo) :options options}})))
+
+(defn parse-incremental
+  "Like `parse`, but keeps the memoized results of the rules, so the text can
+  be parsed again after an edit using `reparse`, which only parses what the
+  edit may have changed. The text is parsed with the interpreter, recording
+  for every rule at every position the part of the text it examined.
+
+  The `options` are those of `parse`, but `:engine`, `:builder`, `:flat` and
+  `:slices` are ignored. With `:memoize`, the `:stats` show how many rules
+  were parsed (the misses) and how many were reused (the hits)."
+  ([rules start text]
+     (parse-incremental rules start text {}))
+  ([rules start text options]
+     (let [rules (if (compiler/grammar? rules) (:rules rules) rules)]
+       (parse-incrementally rules start text
+                               (core/incremental-memo-table rules (count text)) options))))
+
+(defn reparse
+  "Parses the text of the `result` of `parse-incremental` or `reparse` again,
+  after an edit that replaced the `removed` number of characters at `offset`
+  by the `inserted` string. The results of the rules that did not examine
+  the edited part of the text are reused, so only the rules around the edit
+  are parsed again, and the rules enclosing it are put together from the
+  results of the rules they contain. Returns a result like
+  `parse-incremental`, which can be reparsed in turn.
+
+  The memoized results are edited in place, and move from the `result` to
+  the returned result, so that a result that is kept does not hold on to
+  them. When a result is reparsed again, the edited text is parsed from
+  scratch, like `parse-incremental` does."
+  [result offset removed inserted]
+  (let [{:keys [rules start ^CharSequence text memo options]} (::incremental (meta result))
+        inserted (str inserted)
+        text (str (.subSequence text 0 offset) inserted
+                  (.subSequence text (+ offset removed) (.length text)))
+        table @memo]
+    (parse-incrementally rules start text
+                            (if (and table (compare-and-set! memo table nil))
+                              (core/edit-memo-table table offset removed (count inserted))
+                              (core/incremental-memo-table rules (count text)))
+                            options)))
+
+(def ^:private ^:const min-chunk-size
+  "The minimum number of characters in a chunk of lines that is parsed in
+  parallel."
+  4096)
+
+(defn- line-end
+  "Returns the offset of the first newline in the `text` at or after `pos`,
+  or the length of the text if there is none."
+  ^long [^CharSequence text ^long pos]
+  (let [length (.length text)]
+    (loop [i pos]
+      (if (or (= i length) (= \newline (.charAt text i)))
+        i
+        (recur (inc i))))))
+
+(defn- line-chunks
+  "Returns the offsets at which the `text` is split into at most `n` chunks
+  of lines, from 0 up to the length of the text. Every chunk starts at the
+  start of a line."
+  [^CharSequence text n]
+  (let [length (.length text)
+        n (max 1 (min (long n) (quot length min-chunk-size)))
+        size (quot length n)]
+    (distinct (concat [0]
+                      (for [i (range 1 n)]
+                        (min length (inc (line-end text (* i size)))))
+                      [length]))))
+
+(defn- file-chunks
+  "Like `line-chunks`, but returns the offsets in the file at `path`, which
+  is split into chunks of at most about a window, so that each can be mapped
+  by itself."
+  [path n]
+  (let [size (long (mapped/file-size path))
+        n (max 1 (min (long n) (quot size min-chunk-size)) (long (Math/ceil (/ size (double window-size)))))
+        chunk-size (quot size n)]
+    (distinct (concat [0]
+                      (for [i (range 1 n)]
+                        (mapped/next-line path (* i chunk-size)))
+                      [size]))))
+
+(defn- parse-chunk
+  "Parses the lines of the `text` between the offsets `from` and `to` like
+  `parse`. Returns a vector with the result of every line, in which the
+  errors have their position plus `base` and the line number in the chunk."
+  [rules start ^CharSequence text from to base options]
+  (loop [pos (long from) results (transient [])]
+    (if (< pos (long to))
+      (let [end (line-end text pos)
+            ;; A carriage return before the newline is not part of the line.
+            line-to (if (and (< pos end) (= \return (.charAt text (dec end)))) (dec end) end)
+            result (parse rules start (.subSequence text pos line-to) options)
+            result (if-let [error (:error result)]
+                     (assoc result :error (assoc error
+                                            :line (inc (count results))
+                                            :pos (+ (long base) pos (long (:pos error)))))
+                     result)]
+        (recur (inc end) (conj! results result)))
+      (persistent! results))))
+
+(defn parse-lines
+  "Parses every line of the `text` like `parse`, starting from the `start`
+  rule, in parallel. Returns a vector with the result of every line, in the
+  order of the lines, which are maps like `parse` returns. The `:line` and
+  `:pos` of an error are those in the whole text. A line ends at a newline,
+  which is not part of it, nor is a carriage return before it. There is no
+  empty line after the last newline.
+
+  The text is split into chunks of lines, which are parsed by the threads of
+  a ForkJoinPool. Instead of a text, a java.io.File may be given, of which
+  every chunk is mapped into memory by itself like `parse-file` does, so the
+  file is not read first and may be larger than 2 GB.
+
+  The `options` are those of `parse`, or of `parse-file` for a file, with
+  one more key:
+
+  - `:pool` the ForkJoinPool to parse the chunks with. The default is the
+            common pool."
+  ([rules start text]
+     (parse-lines rules start text {}))
+  ([rules start text {:keys [pool charset] :as options}]
+     (let [^java.util.concurrent.ForkJoinPool
+           pool (or pool (java.util.concurrent.ForkJoinPool/commonPool))
+           n (* 4 (.getParallelism pool))
+           file (instance? java.io.File text)
+           [rules options] (prepare rules (dissoc options :pool :charset (when file :slices)))
+           tasks (if file
+                   (for [[from to] (partition 2 1 (file-chunks text n))]
+                     #(let [chunk (mapped/map-range text (or charset "UTF-8") from (- to from))]
+                        (parse-chunk rules start chunk 0 (count chunk) from options)))
+                   (for [[from to] (partition 2 1 (line-chunks text n))]
+                     #(parse-chunk rules start text from to 0 options)))]
+       (loop [futures (seq (.invokeAll pool ^java.util.Collection (vec tasks)))
+              lines 0
+              results (transient [])]
+         (if-let [^java.util.concurrent.Future future (first futures)]
+           (let [chunk (.get future)]
+             (recur (next futures)
+                    (+ lines (count chunk))
+                    (reduce (fn [results result]
+                              (conj! results (if (:error result)
+                                               (update-in result [:error :line] + lines)
+                                               result)))
+                            results chunk)))
+           (persistent! results))))))
+
+(defn- sync-point
+  "Returns the end of the first match of the `sync` terminal in the `text` at
+  or after `pos`, or the length of the text if there is none."
+  [sync ^CharSequence text pos]
+  (let [^java.util.regex.Pattern pattern
+        (if (regex? sync)
+          sync
+          (java.util.regex.Pattern/compile (java.util.regex.Pattern/quote (str sync))))
+        matcher (.matcher pattern text)]
+    (if (.find matcher (int pos))
+      (.end matcher)
+      (.length text))))
+
+(defn- parse-items
+  "Parses the `item` rule in the `text` from `from`, until an item ends at or
+  after `to`. Returns a map with the `:contents` of the items and the `:end`
+  of the last one, or nil when an item failed or did not advance."
+  [rules item text from to options]
+  (loop [pos (long from) contents (transient [])]
+    (if (< pos (long to))
+      (let [{:keys [content end]} (run-parser rules item text (assoc options :offset pos))
+            end (long end)]
+        (when (> end pos)
+          (recur end (conj! contents content))))
+      {:contents (persistent! contents) :end pos})))
+
+(defn- repetition-content
+  "Returns the content of the `start` rule holding only the `repetition`, as
+  the `builder` builds it from the `contents` of the items."
+  [builder start repetition contents]
+  (let [item (:expression repetition)
+        iterations (vec (for [content contents]
+                          (builder/end-rule builder
+                                            (builder/child builder (builder/begin-rule builder start)
+                                                           start item content)
+                                            start)))]
+    (builder/end-rule builder
+                      (builder/repetition builder (builder/begin-rule builder start)
+                                          start repetition iterations)
+                      start)))
+
+(defn sync-by
+  "Returns a parsing expression matching zero or more of the `item` rule, like
+  `[item *]`, which declares that the text after every match of the terminal
+  `sync` is a candidate for the start of an item. A start rule holding only
+  this expression can be parsed in parallel by `parse-parallel`."
+  [item sync]
+  (assoc (core/->Repetition item :zero-or-more nil) :sync sync))
+
+(defn parse-parallel
+  "Like `parse`, but parses the items of a start rule like `[(sync-by :item
+  sync)]` in parallel. The text is split into chunks at the candidates of the
+  sync terminal, which are parsed by the threads of a ForkJoinPool, each
+  assuming an item starts at its candidate. A chunk is only used when the
+  chunk before it ended where it started; otherwise its text is parsed again
+  from where the chunk before it ended. The result is the same as that of
+  `parse`, which is used when the start rule is not like the above, or when
+  the text does not parse as items up to its end.
+
+  The `options` are those of `parse`, but `:memoize` and `:flat` are
+  ignored, with one more key:
+
+  - `:pool` the ForkJoinPool to parse the chunks with. The default is the
+            common pool."
+  ([rules start text]
+     (parse-parallel rules start text {}))
+  ([rules start ^CharSequence text {:keys [pool builder] :as options}]
+     (let [expression (get (if (compiler/grammar? rules) (:rules rules) rules) start)
+           repetition (when (and (vector? expression) (= 1 (count expression)))
+                        (first expression))
+           {item :expression sync :sync} repetition
+           fallback-options (dissoc options :pool :memoize :flat)]
+       (if-not (and sync (keyword? item))
+         (parse rules start text fallback-options)
+         (let [^java.util.concurrent.ForkJoinPool
+               pool (or pool (java.util.concurrent.ForkJoinPool/commonPool))
+               builder (or builder (core/ast-builder-for options))
+               [item-rules parse-options]
+               (prepare rules (assoc (dissoc options :pool :memoize :recognize :flat)
+                                :builder builder))
+               length (.length text)
+               n (max 1 (min (* 4 (.getParallelism pool)) (quot length min-chunk-size)))
+               bound (fn [i]
+                       (cond (zero? i) 0
+                             (= i n) length
+                             :else (sync-point sync text (* i (quot length n)))))
+               tasks (for [i (range n)]
+                       #(let [from (bound i)
+                              to (bound (inc i))]
+                          (assoc (parse-items item-rules item text from to parse-options)
+                            :from from :to to)))
+               chunks (map #(.get ^java.util.concurrent.Future %)
+                           (.invokeAll pool ^java.util.Collection (vec tasks)))
+               contents (loop [chunks chunks pos 0 contents (transient [])]
+                          (if-let [{:keys [from to end] :as chunk} (first chunks)]
+                            (if-let [parsed (if (and (= pos from) (:contents chunk))
+                                              chunk
+                                              ;; The candidate was not where the
+                                              ;; chunk before it ended.
+                                              (parse-items item-rules item text pos to parse-options))]
+                              (recur (rest chunks) (long (:end parsed))
+                                     (reduce conj! contents (:contents parsed)))
+                              nil)
+                            (persistent! contents)))]
+           ;; The repetition stops at the item that fails at the end.
+           (if (and contents
+                    (neg? (long (:end (run-parser item-rules item text (assoc parse-options
+                                                                    :offset length))))))
+             (make-result text (final-content (repetition-content builder start repetition contents)
+                                              start options)
+                          length nil -1)
+             (parse rules start text fallback-options)))))))
+
+(defn compile-grammar
+  "Compile the `rules` map to a grammar that can be passed to `parse` instead
+  of the rules map. The rules map is walked only once, turning every parsing
+  expression into a node that calls the nodes of its parts directly. This
+  saves the interpretation of the parsing expressions while parsing, so a
+  grammar that is used more than once should be compiled.
+
+  An optional `options` map can be supplied, with the following keys:
+
+  - `:backend` when `:bytecode`, a JVM class is generated for the rules, with
+               a method for every rule in which the terminals are matched
+               inline. This takes longer to compile, but parses faster.
+               When `:vm`, the rules are compiled to a program for the
+               parsing machine, as used by the `:vm` engine of `parse`. The
+               default backend is `:nodes`."
+  ([rules]
+     (compile-grammar rules {}))
+  ([rules {:keys [backend] :as options}]
+     (case (or backend :nodes)
+       :nodes (compiler/compile-grammar rules)
+       :bytecode (bytecode/compile-grammar rules)
+       :vm (machine/compile-rules rules))))
+
+(def ^{:doc "The operator that makes the item before it in a vector optional,
+  like `*` and `+` repeat the item before it zero or more, and one or more
+  times."}
+  ? core/?)
+
+(defn sep-by
+  "This function returns a parsing expression matching one or more of the
+  `item`, with the `separator` in between. Like the `*`, `+` and `?`
+  operators, it is parsed with a loop, but gives the same result as the
+  recursive rule `[item separator :rule / item]`."
+  [item separator]
+  (core/->Repetition item :one-or-more separator))
+
+(defn line-index
+  "Returns an index of the lines in the `text` string (or other CharSequence),
+  for converting positions in the text to line and column numbers using
+  `line-and-column`. The index is built in a single pass over the text, after
+  which every conversion is a binary search. This pays off when many
+  positions need converting, for instance when annotating AST nodes."
+  [text]
+  (core/line-index text))
+
+(defn line-and-column
+  "Given a line `index` as returned by `line-index`, and a position in its text
+  (starting from 0), return a tuple with the line and column number of that
+  position (both starting at 1)."
+  [index pos]
+  (core/index-line-and-column index pos))
 
 (defn with-spaces
   "This function returns a vector with mandatory white-space between the
   specified items."
   [& items]
-  (into [] (interpose #"\s+" items)))
\ No newline at end of file
+  (into [] (interpose #"\s+" items)))
@@ -1,5 +1,6 @@
 (ns crustimoney.parse-test
   "Testing functions for the API namespace of Crustimoney."
+  (:require [crustimoney.builder :as builder])
   (:use midje.sweet
         crustimoney.parse))
 
@@ -37,3 +38,362 @@
     (just {:error (contains {:line 1 :column 2})})
   (parse {:a (with-spaces \a \b)} :a "a\n  ") =>
     (just {:error (contains {:line 2 :column 3})}))
+
+(def calc
+  {:expr          [ :sum ]
+   :sum           [ :product :sum-op :sum / :product ]
+   :product       [ :value :product-op :product / :value ]
+   :value         [ :number / \( :expr \) ]
+   :sum-op        #"(\+|-)"
+   :product-op    #"(\*|/)"
+   :number        #"[0-9]+"})
+
+(defn- engines
+  "Returns the `rules` map with the grammars compiled from it by every
+  backend, which all give the same results."
+  [rules]
+  [rules (compile-grammar rules) (compile-grammar rules {:backend :bytecode})
+   (compile-grammar rules {:backend :vm})])
+
+(def calc-engines
+  (engines calc))
+
+(fact "recursive rules are flattened within nested rules"
+  (parse calc :expr "2+3*4") =>
+    {:succes {:sum [{:sum-op "+" :product {:value {:number "2"}}}
+                    {:product [{:product-op "*" :value {:number "3"}}
+                               {:value {:number "4"}}]}]}})
+
+(fact "terminal rules do not hide the other items in a vector"
+  (parse {:a [:x :b] :x \x :b- [\c \c]} :a "xcc") => {:succes {:x "x" :b "cc"}})
+
+(fact "memoization yields the same results and reports statistics"
+  (let [deep (str (apply str (repeat 20 \()) 1 (apply str (repeat 20 \))))]
+    (parse calc :expr deep {:memoize true}) => (contains {:succes map?})
+    (parse calc :expr "2+3*4" {:memoize true}) =>
+      (contains {:succes (:succes (parse calc :expr "2+3*4"))
+                 :stats (contains {:hits pos? :misses pos?})})
+    (:error (parse calc :expr "2+" {:memoize true})) => (:error (parse calc :expr "2+"))))
+
+(fact "any character sequence can be parsed"
+  (parse {:a [:b / :c] :b "foo" :c #"ba."} :a (StringBuilder. "bar")) => {:succes {:c "bar"}}
+  (parse {:a [\a \b]} :a (StringBuilder. "a\nb")) =>
+    (just {:error (contains {:line 1 :column 2})}))
+
+(fact "regular expressions are anchored and keep their flags"
+  (parse {:a [\x :b] :b #"foo|bar"} :a "xbar") => {:succes {:b "bar"}}
+  (parse {:a [\x :b] :b #"foo|bar"} :a "xzbar") => (just {:error (contains {:pos 1})})
+  (parse {:a (java.util.regex.Pattern/compile "foo" java.util.regex.Pattern/CASE_INSENSITIVE)}
+         :a "FoO") => {:succes "FoO"})
+
+(fact "a compiled grammar gives the same results as its rules map"
+  (let [grammar (compile-grammar calc)]
+    (doseq [text ["2+3-10*15" "(1+2)*3" "2+3-10*" "2+" "1)" ""]]
+      (parse grammar :expr text) => (parse calc :expr text)
+      (parse grammar :expr text {:memoize true}) => (parse calc :expr text {:memoize true})))
+  (parse (compile-grammar {:a [:x :b] :x \x :b- [\c :b / ]}) :a "xccc") =>
+    {:succes {:x "x" :b "ccc"}})
+
+(fact "a grammar compiled to bytecode gives the same results as its rules map"
+  (let [grammar (compile-grammar calc {:backend :bytecode})]
+    (doseq [text ["2+3-10*15" "(1+2)*3" "2+3-10*" "2+" "1)" ""]]
+      (parse grammar :expr text) => (parse calc :expr text)
+      (parse grammar :expr text {:memoize true}) => (parse calc :expr text {:memoize true})))
+  (parse (compile-grammar {:a [:x :b] :x \x :b- [\c :b / ]} {:backend :bytecode}) :a "xccc") =>
+    {:succes {:x "x" :b "ccc"}})
+
+(fact "the parsing machine gives the same results as the interpreter"
+  (doseq [text ["2+3-10*15" "(1+2)*3" "2+3-10*" "2+" "1)" ""]]
+    (parse calc :expr text {:engine :vm}) => (parse calc :expr text)
+    (parse calc :expr text {:engine :vm :memoize true}) => (parse calc :expr text {:memoize true}))
+  (let [rules {:w [:c :w / :c] :c #"[a-c\u00e9]"}]
+    (parse rules :w "ab\u00e9" {:engine :vm}) => {:succes [{:c "a"} {:c "b"} {:c "\u00e9"}]}
+    (parse rules :w "abd" {:engine :vm}) => (parse rules :w "abd")))
+
+(fact "the parsing machine is not limited by the JVM stack"
+  (let [text (str (apply str (repeat 5000 \b)) \c)]
+    (count (:succes (parse {:a [:b :a / \c] :b \b} :a text {:engine :vm}))) => 5000
+    (count (:succes (parse (compile-grammar {:a [:b :a / \c] :b \b} {:backend :vm}) :a text)))
+      => 5000))
+
+(fact "long lists and terminal rules are assembled in linear time"
+  (let [text (str (apply str (repeat 100000 \b)) \c)
+        result (:succes (parse {:a [:b :a / \c] :b \b} :a text {:engine :vm}))]
+    result => vector?
+    (count result) => 100000
+    (last result) => {:b "b"}
+    (parse {:s [:a] :a- [\b :a / \c]} :s text {:engine :vm}) => {:succes {:a text}}))
+
+(facts "about converting positions to lines and columns"
+  (let [index (line-index "ab\ncd\n\ne")]
+    (line-and-column index 0) => [1 1]
+    (line-and-column index 2) => [1 3]
+    (line-and-column index 3) => [2 1]
+    (line-and-column index 4) => [2 2]
+    (line-and-column index 6) => [3 1]
+    (line-and-column index 8) => [4 2]))
+
+(fact "repetition operators give the same results as the recursive rules"
+  (let [item {:i #"[a-z]"}]
+    (doseq [text ["" "a" "ab" "abc" "a1"]]
+      (parse (assoc item :l [:i *]) :l text) => (parse (assoc item :l [:i :l / ]) :l text)
+      (parse (assoc item :l [:i +]) :l text) => (parse (assoc item :l [:i :l / :i]) :l text))
+    (doseq [text ["" "a" "a,b" "a,b,c" "a,"]]
+      (parse (assoc item :l [(sep-by :i \,)]) :l text) =>
+        (parse (assoc item :l [:i \, :l / :i]) :l text)))
+  (let [item {:i [\a ?]}]
+    (doseq [text ["" "," ",a" "a," "a,,a"]
+            rules (engines (assoc item :l [(sep-by :i \,)]))]
+      (parse rules :l text) => (parse (assoc item :l [:i \, :l / :i]) :l text))
+    (doseq [text ["a" "a," "a,a" "aa," "aa,,a"]
+            rules (engines (assoc item :s [\a :l] :l- [(sep-by :i \,)]))]
+      (parse rules :s text) => (parse (assoc item :s [\a :l] :l- [:i \, :l / :i]) :s text)))
+  (parse {:x [:s ? :d] :s \- :d #"[0-9]"} :x "1") => {:succes {:d "1"}}
+  (parse {:x [:s ? :d] :s \- :d #"[0-9]"} :x "-1") => {:succes {:s "-" :d "1"}}
+  (parse {:x [\( (sep-by :a \,) ? \)] :a #"[a-z]"} :x "(a,b)") =>
+    {:succes {:x [{:a "a"} {:a "b"}]}})
+
+(fact "repetition operators give the same results in every engine"
+  (let [rules {:w [[(sep-by [:x ?] \,) \;] *] :x #"[a-z]" :y- [[\a \b] * \c]}]
+    (doseq [text ["" "a;" "a,;b;" "a,b,c;;" ",;" "a,b"]
+            options [{:engine :vm} {:engine :vm :memoize true}]]
+      (parse rules :w text options) => (parse rules :w text (dissoc options :engine)))
+    (doseq [text ["ababc" "c" "abab"]
+            backend [:nodes :bytecode :vm]]
+      (parse (compile-grammar rules {:backend backend}) :y text) => (parse rules :y text))))
+
+(fact "tail recursive rules are parsed with a loop"
+  (let [rules {:list [:i \, :list / :i] :i #"[0-9]+"}
+        text (apply str (interpose \, (range 20000)))
+        result (:succes (parse rules :list text))]
+    (count result) => 20000
+    (last result) => {:i "19999"}
+    (parse rules :list text {:memoize true}) => (contains {:succes result})
+    (parse rules :list "1,2") => {:succes [{:i "1"} {:i "2"}]}
+    (parse rules :list "1,2,") => (parse rules :list "1,2," {:engine :vm})
+    (parse {:s [:a- :s / :a-] :a- [\a :b] :b [\b / ]} :s "abab")
+      => (parse (compile-grammar {:s [:a- :s / :a-] :a- [\a :b] :b [\b / ]}) :s "abab")))
+
+(facts "about recognizing without building an AST"
+  (doseq [rules calc-engines]
+    (valid? rules :expr "2+(3*4)") => true
+    (recognize rules :expr "2+(3*4)") => nil
+    (recognize rules :expr "2+3-10*") => {:pos 7}
+    (recognize rules :expr "2+3-10*" {:errors true}) => (:error (parse calc :expr "2+3-10*"))
+    (recognize rules :expr "2+3 " {:memoize true}) => {:pos 3}
+    (valid? rules :expr "2+3-10*" {:engine :vm}) => false))
+
+(def terminal-counter
+  (reify builder/Builder
+    (begin-rule [_ rule] 0)
+    (terminal [_ rule input start end] 1)
+    (child [_ result rule item content] (+ result content))
+    (repetition [_ result rule repetition contents] (apply + result contents))
+    (end-rule [_ result rule] result)))
+
+(facts "about building results with another builder"
+  (doseq [rules calc-engines]
+    (parse rules :expr "2+3*4" {:builder terminal-counter}) => {:succes 5}
+    (parse rules :expr "(1+2)*(3+4)" {:builder terminal-counter :memoize true})
+      => (contains {:succes 7})
+    (parse rules :expr "2+" {:builder terminal-counter}) => (parse calc :expr "2+"))
+  (parse {:list [:item \; (sep-by :item \,) \;] :item- [#"[a-z]+"]} :list "a;b,c;"
+         {:builder terminal-counter})
+    => {:succes 3})
+
+(facts "about the flat AST"
+  (doseq [rules calc-engines]
+    (let [ast (:succes (parse rules :expr "2+3*4" {:flat true}))]
+      (get-in ast [:sum 0 :sum-op]) => "+"
+      (get-in ast [:sum 0 :product :value :number]) => "2"
+      (get-in ast [:sum 1 :product 1 :value :number]) => "4"
+      (count (:sum ast)) => 2
+      (map :product-op (get-in ast [:sum 1 :product])) => ["*" nil]))
+  (:error (parse calc :expr "2+" {:flat true})) => (:error (parse calc :expr "2+")))
+
+(facts "about slices of the input"
+  (doseq [rules calc-engines]
+    (let [ast (:succes (parse rules :expr "2+13*4" {:slices true}))
+          number (get-in ast [:sum 1 :product 0 :value :number])]
+      (instance? String number) => false
+      (= number "13") => true
+      (hash number) => (hash "13")
+      (str number) => "13"
+      (.subSequence ^CharSequence number 1 2) => #(= % "3")
+      (compare number "12") => pos?
+      (pr-str ast) => (pr-str (:succes (parse calc :expr "2+13*4"))))))
+
+(defn- events
+  [rules start text]
+  (let [events (atom [])]
+    [(parse-events rules start text (fn [& event] (swap! events conj (vec event))))
+     @events]))
+
+(facts "about parse events"
+  (events calc :expr "2*3") =>
+    [nil [[:start :expr 0 nil] [:start :sum 0 nil] [:start :product 0 nil]
+          [:start :value 0 nil] [:terminal :number 0 1] [:end :value 0 1]
+          [:terminal :product-op 1 2] [:start :product 2 nil] [:start :value 2 nil]
+          [:terminal :number 2 3] [:end :value 2 3] [:end :product 2 3]
+          [:end :product 0 3] [:end :sum 0 3] [:end :expr 0 3]]]
+  (events (compile-grammar calc {:backend :bytecode}) :expr "2*3") => (events calc :expr "2*3")
+  (events {:a [:b \x / :b \y] :b \b} :a "by") =>
+    [nil [[:start :a 0 nil] [:terminal :b 0 1] [:end :a 0 2]]]
+  (events {:a [(sep-by :b \,) \;] :b- [\b +]} :a "b,bb;") =>
+    [nil [[:start :a 0 nil] [:terminal :b 0 1] [:terminal :b 2 4] [:end :a 0 5]]]
+  (first (events calc :expr "2+")) => (:error (parse calc :expr "2+")))
+
+(defn- fold
+  "Returns an action evaluating the operands under `key`, followed by the
+  operators under `op-key`, from left to right."
+  [key op-key]
+  (fn [content]
+    (if (map? content)
+      (key content)
+      (first (reduce (fn [[value op] item]
+                       [(if op (op value (key item)) (key item)) (op-key item)])
+                     [nil nil] content)))))
+
+(def calc-actions
+  {:number #(Long/parseLong %)
+   :value #(or (:number %) (:expr %))
+   :product (fold :value :product-op)
+   :product-op {"*" * "/" /}
+   :sum (fold :product :sum-op)
+   :sum-op {"+" + "-" -}
+   :expr :sum})
+
+(facts "about actions"
+  (doseq [rules calc-engines]
+    (parse rules :expr "2+3-10*15" {:actions calc-actions}) => {:succes -145}
+    (parse rules :expr "(1+2)*3-4/2" {:actions calc-actions :memoize true})
+      => (contains {:succes 7})
+    (parse rules :expr "2+" {:actions calc-actions}) => (parse calc :expr "2+"))
+  (parse calc :expr "1+2" {:actions {:number #(Long/parseLong %)}})
+    => {:succes {:sum [{:sum-op "+" :product {:value {:number 1}}}
+                       {:product {:value {:number 2}}}]}}
+  (parse calc :expr "1+2" {:actions {:sum count}}) => {:succes {:sum 2}}
+  (doseq [rules calc-engines]
+    (let [calls (atom [])
+          record #(swap! calls conj %)]
+      (parse rules :expr "1+2*3" {:actions calc-actions :effects {:number record}})
+        => {:succes 7}
+      @calls => [1 2 3]
+      (parse rules :expr "1+2*" {:actions calc-actions :effects {:expr record}})
+      @calls => [1 2 3]))
+  (let [text (str (apply str (repeat 3000 \()) "x" (apply str (repeat 3000 \))))
+        {:keys [succes]} (parse {:a [\( :a \) / :x] :x \x} :a text
+                                {:engine :vm :actions {:x (constantly 1)}})]
+    (get-in succes (take 6000 (cycle [:a 0]))) => {:x 1}))
+
+(fact "files are parsed from memory-mapped bytes"
+  (let [file (doto (java.io.File/createTempFile "crustimoney" ".txt") (.deleteOnExit))
+        words {:words [(sep-by :word \space)] :word #"[^ ]+"}]
+    (spit file "2+3*4")
+    (parse-file calc :expr file) => (parse calc :expr "2+3*4")
+    (parse-file calc :expr (str file) {:flat true :memoize true})
+      => (contains {:succes #(= "+" (get-in % [:sum 0 :sum-op]))})
+    (spit file "h\u00e9 w\u00f6rld" :encoding "UTF-8")
+    (parse-file words :words file) => {:succes [{:word "h\u00e9"} {:word "w\u00f6rld"}]}
+    (parse-file (assoc words :word #"[a-z]+") :words file)
+      => (just {:error (contains {:pos 1 :column 2})})
+    (parse-file words :words file {:slices true}) => {:succes [{:word "h\u00e9"} {:word "w\u00f6rld"}]}))
+
+(facts "about parsing from a reader"
+  (doseq [text ["2+3-10*15" "(1+2)*3" "2+3\n+4)" "2+"]]
+    (parse-reader calc :expr (java.io.StringReader. text)) => (parse calc :expr text))
+  (let [rows {:rows [(sep-by :row \newline)] :row [(sep-by :field \,)] :field #"[a-z0-9]*"}
+        text (apply str (interpose \newline (repeat 10000 "abc,12,xyz")))]
+    (count (:succes (parse-reader rows :rows (java.io.StringReader. text) {:window 1000})))
+      => 10000
+    (first (events rows :rows (java.io.StringReader. text))) => nil)
+  (let [text (apply str (concat (repeat 50000 \x) "!"))]
+    (parse-reader {:a [:b \; / :b \!] :b- [\x *]} :a (java.io.StringReader. text))
+      => {:succes {:b (subs text 0 50000)}}
+    (parse-reader {:a [:b \; / :b \!] :b- [\x *]} :a (java.io.StringReader. text) {:window 1000})
+      => (throws Exception #"^Backtracked to position 0"))
+  ;; The furthest failure comes before a choice that is committed later.
+  (let [rules {:a [\newline * [\x / \y] [\z / \q]]}]
+    (doseq [text ["yz!" "\n\nyz!"]]
+      (parse-reader rules :a (java.io.StringReader. text)) => (parse rules :a text)
+      (first (events rules :a (java.io.StringReader. text))) => (:error (parse rules :a text)))))
+
+(facts "about parsing sequences of records"
+  (let [statements (assoc calc :statement [:expr \; #"\s*"])
+        results [(parse calc :expr "1+2") (parse calc :expr "3*4")]]
+    (doseq [rules [statements (compile-grammar statements)
+                   (compile-grammar statements {:backend :bytecode})]]
+      (map (comp :expr :succes) (parse-seq rules :statement "1+2;\n3*4;")) => (map :succes results))
+    (map (comp :expr :succes) (parse-seq statements :statement (java.io.StringReader. "1+2; 3*4;")))
+      => (map :succes results)
+    (last (parse-seq statements :statement "1+2;\n3*")) =>
+      {:error {:errors #{"expected character '('" "expected a character sequence that matches '[0-9]+'"}
+               :line 2 :column 3 :pos 7}}
+    (parse-seq statements :statement "") => []
+    (let [file (doto (java.io.File/createTempFile "crustimoney" ".txt") (.deleteOnExit))]
+      (spit file "1+2;\n3*")
+      (parse-seq statements :statement file) => (parse-seq statements :statement "1+2;\n3*"))
+    (take 2 (parse-seq {:a \x} :a (apply str (repeat 100000 \x)))) => [{:succes "x"} {:succes "x"}]))
+
+(facts "about pushing text to a parser"
+  (let [statements (assoc calc :statement [:expr \; #"\s*"])
+        text "1+2;\n3*4;  (5-6)*7;\n8+"
+        expected (parse-seq statements :statement text)]
+    (doseq [size [1 2 5 100]]
+      (let [session (push-parser statements :statement)
+            pushed (vec (mapcat #(push session (apply str %)) (partition-all size text)))]
+        (into pushed (finish session)) => expected))
+    (let [session (push-parser statements :statement)]
+      (push session "1+2;3") => [{:succes {:expr (:succes (parse calc :expr "1+2"))}}]
+      (push session "*4") => []
+      (push session ";") => []
+      (finish session) => [{:succes {:expr (:succes (parse calc :expr "3*4"))}}]
+      (push session "5;") => (throws IllegalStateException))))
+
+(facts "about incremental reparsing"
+  (let [statements (assoc calc :doc [:statement *] :statement [:expr \; #"\s*"])
+        text (apply str (for [i (range 100)] (str i "+(" i "*2);\n")))
+        result (parse-incremental statements :doc text {:memoize true})
+        edit (fn [text offset removed inserted]
+               (str (subs text 0 offset) inserted (subs text (+ offset removed))))]
+    (dissoc result :stats) => (parse statements :doc text)
+    (let [reparsed (reparse result 500 1 "7*8")]
+      (dissoc reparsed :stats) => (parse statements :doc (edit text 500 1 "7*8"))
+      (< (:misses (:stats reparsed)) 20) => true
+      ;; The statements around the edit are reused as runs, not one by one.
+      (< (:hits (:stats reparsed)) 20) => true
+      (dissoc (reparse reparsed 500 3 "x") :stats) => (parse statements :doc (edit (edit text 500 1 "7*8") 500 3 "x")))
+    (dissoc (reparse result (count text) 0 "1;") :stats) => (parse statements :doc (str text "1;"))
+    (dissoc (reparse result 0 (count text) "") :stats) => (parse statements :doc "")))
+
+(facts "about parsing lines in parallel"
+  (let [lines (for [i (range 2000)] (str i "+(" i "*3-1)"))
+        text (apply str (interleave lines (cycle ["\n" "\r\n"])))
+        results (parse-lines calc :expr text {:pool (java.util.concurrent.ForkJoinPool. 3)})]
+    results => (map #(parse calc :expr %) lines)
+    (parse-lines calc :expr "1+2\n\n3x\n4") => (just [(contains {:succes anything})
+                                                   (just {:error (contains {:line 2 :column 1 :pos 4})})
+                                                   (just {:error (contains {:line 3 :column 2 :pos 6})})
+                                                   (contains {:succes anything})])
+    (parse-lines calc :expr "") => []
+    (let [file (doto (java.io.File/createTempFile "crustimoney" ".txt") (.deleteOnExit))]
+      (spit file text)
+      (parse-lines calc :expr file) => results)))
+
+(facts "about parsing items in parallel at sync points"
+  (let [rules {:program [(sync-by :statement \;)]
+               :statement [:ws :name \= :value \; :ws]
+               :name #"[a-z]+"
+               :value [:string / :number]
+               :string #"\"[^\"]*\""
+               :number #"[0-9]+"
+               :ws- #"\s*"}
+        ;; The strings hold sync tokens, so some chunks start inside one.
+        text (apply str (for [i (range 3000)]
+                          (if (zero? (mod i 3)) (str "s=\"a;b;" i "\";\n") (str "x=" i ";"))))
+        pool (java.util.concurrent.ForkJoinPool. 4)]
+    (parse-parallel rules :program text {:pool pool}) => (parse rules :program text)
+    (parse-parallel rules :program (str text "y=1")) => (parse rules :program (str text "y=1"))
+    (parse-parallel rules :program "") => {:succes nil}
+    (parse-parallel calc :expr "1+2") => (parse calc :expr "1+2")
+    (parse-parallel calc :expr "1+2" {:memoize true :flat true}) => (parse calc :expr "1+2")))